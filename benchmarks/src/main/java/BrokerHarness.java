@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The default-package side of bench.Broker: a Server built from the given
+// options, reached through its own (package-private) routing entry points.
+public class BrokerHarness implements bench.Broker {
+    private final ServerConfig config;
+    private final Server server;
+    private final AtomicLong delivered = new AtomicLong();
+    // Topics broadcast() has published to, as a publisher would hold them;
+    // keyed by topic alone, as each benchmark uses one publisherInfo
+    private final Map<String, Publication> publications = new ConcurrentHashMap<>();
+    private int nextClient = 0;
+    // Second server with a real listener, for the loopback benchmarks
+    private Server listening;
+
+    public BrokerHarness(String[] serverOptions) {
+        config = ServerConfig.parse(serverOptions, 0);
+        // Registering thousands of clients would otherwise flood the log
+        Log.setLevel(Log.Level.WARN);
+        server = new Server(0, config);
+    }
+
+    // A connection with no socket whose writer empties its queue at once
+    private final class SinkClient extends ClientHandler {
+        SinkClient(Server server, String clientInfo) {
+            super(server, clientInfo);
+        }
+
+        @Override
+        protected void onEnqueued() {
+            long frames = 0;
+            PooledBuffer frame;
+            while ((frame = outbound.poll()) != null) {
+                frame.release();
+                frames++;
+            }
+            delivered.addAndGet(frames);
+        }
+
+        // Feed bytes through the same decoder a socket read would
+        void receive(ByteBuffer bytes) {
+            inputBuffer.put(bytes);
+            processInput();
+        }
+
+        void receive(byte[] bytes) {
+            inputBuffer.put(bytes);
+            processInput();
+        }
+    }
+
+    private SinkClient connect(String type, String topic, boolean binary) {
+        SinkClient client = new SinkClient(server, "bench-" + (++nextClient));
+        server.addClient(client);
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        if (binary) {
+            client.receive(MessageCodec.encodeLine(MessageCodec.BINARY_HANDSHAKE));
+            byte frameType = "PUBLISHER".equals(type) ? MessageCodec.FRAME_PUBLISHER : MessageCodec.FRAME_SUBSCRIBER;
+            client.receive(MessageCodec.encodeFrame(frameType, 0, name));
+        } else {
+            client.receive(MessageCodec.encodeLine(type));
+            client.receive(MessageCodec.encodeLine(topic));
+        }
+        return client;
+    }
+
+    @Override
+    public Object connectSubscriber(String topic, boolean binary) {
+        return connect("SUBSCRIBER", topic, binary);
+    }
+
+    @Override
+    public Object connectPublisher(String topic) {
+        return connect("PUBLISHER", topic, false);
+    }
+
+    @Override
+    public Object connectPublisher(String topic, boolean binary) {
+        return connect("PUBLISHER", topic, binary);
+    }
+
+    @Override
+    public void receive(Object client, byte[] bytes) {
+        ((SinkClient) client).receive(bytes);
+    }
+
+    @Override
+    public int topicId(String topic) {
+        return server.topicId(topic);
+    }
+
+    @Override
+    public void registerSubscriber(Object client, String subscription) {
+        server.registerSubscriber((ClientHandler) client, server.acquireTopic(subscription), false, () -> {
+        });
+    }
+
+    @Override
+    public void unregisterSubscriber(Object client, String subscription) {
+        server.unregisterSubscriber((ClientHandler) client, subscription);
+    }
+
+    @Override
+    public void registerPublisher(Object client, String topic) {
+        server.registerPublisher((ClientHandler) client, server.acquireTopic(topic));
+    }
+
+    @Override
+    public void unregisterPublisher(Object client, String topic) {
+        server.unregisterPublisher((ClientHandler) client, topic);
+    }
+
+    @Override
+    public void broadcast(byte[] payload, String publisherInfo, String topic) {
+        Publication from = publications.get(topic);
+        if (from == null) {
+            from = new Publication(server.acquireTopic(topic), publisherInfo);
+            publications.put(topic, from);
+        }
+        server.broadcastToTopicSubscribers(payload, from);
+    }
+
+    @Override
+    public long framesDelivered() {
+        return delivered.get();
+    }
+
+    @Override
+    public ByteBuffer encodeMessage(Object subscriber, String topic, String publisherInfo, byte[] payload) {
+        return server.encodeMessage((ClientHandler) subscriber, topic, publisherInfo, payload);
+    }
+
+    @Override
+    public ByteBuffer encodeLine(byte[] prefix, byte[] payload) {
+        return MessageCodec.encodeLine(prefix, payload);
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(int topicId, byte[] payload) {
+        return MessageCodec.encodeFrame(MessageCodec.FRAME_MESSAGE, topicId, payload);
+    }
+
+    @Override
+    public byte[] decodeFrame(ByteBuffer buffer) {
+        try {
+            MessageCodec.Frame frame = MessageCodec.decodeFrame(buffer);
+            return frame != null ? frame.payload : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String decodeLine(ByteBuffer buffer) {
+        return MessageCodec.decodeLine(buffer);
+    }
+
+    // Server only takes a port number, so find a free one first
+    @Override
+    public int listen() {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        listening = new Server(port, config);
+        Thread listener = new Thread(listening::start, "bench-server");
+        listener.setDaemon(true);
+        listener.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return port;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throw new IllegalStateException("Server did not start listening on port " + port);
+    }
+
+    @Override
+    public Socket connect(String address, int port) throws IOException {
+        Socket socket = Client.openSocket(address, port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+        if (listening != null) {
+            listening.stop();
+        }
+    }
+}
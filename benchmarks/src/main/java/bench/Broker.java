@@ -0,0 +1,75 @@
+package bench;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+// What the benchmarks drive in the task3 server. The server's classes are in
+// the default package, which code in a named package (as JMH requires) cannot
+// import, so the implementation, BrokerHarness, lives in the default package
+// and is loaded by name once per trial. After that every call is an ordinary
+// interface call, so reflection never shows up in a measurement.
+public interface Broker {
+
+    static Broker create(String... serverOptions) {
+        try {
+            return (Broker) Class.forName("BrokerHarness").getConstructor(String[].class)
+                    .newInstance((Object) serverOptions);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load BrokerHarness", e);
+        }
+    }
+
+    // In-process clients with no socket: each goes through the real handshake
+    // and its outbound queue is drained as soon as anything is queued, so a
+    // broadcast costs routing and encoding but no I/O. Returns a handle for
+    // the calls below.
+    Object connectSubscriber(String topic, boolean binary);
+
+    Object connectPublisher(String topic);
+
+    Object connectPublisher(String topic, boolean binary);
+
+    // Bytes as if read from a connected client's socket: decoded, and a
+    // publisher's messages routed
+    void receive(Object client, byte[] bytes);
+
+    // Binary id of a registered topic
+    int topicId(String topic);
+
+    // Straight to the subscriber and publisher maps, without the handshake
+    void registerSubscriber(Object client, String subscription);
+
+    void unregisterSubscriber(Object client, String subscription);
+
+    void registerPublisher(Object client, String topic);
+
+    void unregisterPublisher(Object client, String topic);
+
+    // Server.broadcastToTopicSubscribers for a raw payload
+    void broadcast(byte[] payload, String publisherInfo, String topic);
+
+    // Frames drained from the in-process subscribers so far
+    long framesDelivered();
+
+    // A message encoded for one subscriber, as the server formats it
+    ByteBuffer encodeMessage(Object subscriber, String topic, String publisherInfo, byte[] payload);
+
+    ByteBuffer encodeLine(byte[] prefix, byte[] payload);
+
+    ByteBuffer encodeFrame(int topicId, byte[] payload);
+
+    // Payload of the next complete frame, or null
+    byte[] decodeFrame(ByteBuffer buffer);
+
+    String decodeLine(ByteBuffer buffer);
+
+    // Run the server's listener on a free loopback port; returns the port
+    int listen();
+
+    // A client connection to the listener, as the task3 Client opens one:
+    // TCP to the port, or a unix: or shm: address from the server options
+    Socket connect(String address, int port) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Register/remove churn against the server's subscriber and publisher maps,
+// with a topic that already has the given number of other clients on it.
+// Each operation is one add followed by one remove of the same client.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChurnBenchmark {
+    private static final String TOPIC = "BENCH.CHURN";
+    private static final String PATTERN = "BENCH.*";
+
+    @Param({ "10", "1000" })
+    public int existingClients;
+
+    private Broker broker;
+    private Object subscriber;
+    private Object publisher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broker = Broker.create();
+        for (int i = 0; i < existingClients; i++) {
+            broker.connectSubscriber(TOPIC, false);
+            broker.connectPublisher(TOPIC);
+        }
+        // Connected to an unrelated topic, then moved on and off TOPIC
+        subscriber = broker.connectSubscriber("BENCH.OTHER", false);
+        publisher = broker.connectPublisher("BENCH.OTHER");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    public void subscriber() {
+        broker.registerSubscriber(subscriber, TOPIC);
+        broker.unregisterSubscriber(subscriber, TOPIC);
+    }
+
+    @Benchmark
+    public void wildcardSubscriber() {
+        broker.registerSubscriber(subscriber, PATTERN);
+        broker.unregisterSubscriber(subscriber, PATTERN);
+    }
+
+    @Benchmark
+    public void publisher() {
+        broker.registerPublisher(publisher, TOPIC);
+        broker.unregisterPublisher(publisher, TOPIC);
+    }
+}
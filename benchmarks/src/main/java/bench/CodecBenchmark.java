@@ -0,0 +1,80 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Per-message formatting and encoding: the text line and binary frame a
+// broadcast builds once per topic, and decoding them on the way in.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    private static final String TOPIC = "BENCH.CODEC";
+    private static final String PUBLISHER = "127.0.0.1:40000";
+
+    @Param({ "16", "256", "4096" })
+    public int payloadBytes;
+
+    private Broker broker;
+    private Object textSubscriber;
+    private Object binarySubscriber;
+    private byte[] payload;
+    private byte[] prefix;
+    private ByteBuffer encodedLine;
+    private ByteBuffer encodedFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broker = Broker.create();
+        textSubscriber = broker.connectSubscriber(TOPIC, false);
+        binarySubscriber = broker.connectSubscriber(TOPIC, true);
+        payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        prefix = ("[TOPIC:" + TOPIC + "] [PUBLISHER " + PUBLISHER + "]: ").getBytes(StandardCharsets.UTF_8);
+        encodedLine = broker.encodeLine(prefix, payload);
+        encodedFrame = broker.encodeFrame(1, payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    // Formatting included: the topic/publisher prefix is built per call
+    @Benchmark
+    public ByteBuffer formatText() {
+        return broker.encodeMessage(textSubscriber, TOPIC, PUBLISHER, payload);
+    }
+
+    @Benchmark
+    public ByteBuffer formatBinary() {
+        return broker.encodeMessage(binarySubscriber, TOPIC, PUBLISHER, payload);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLine() {
+        return broker.encodeLine(prefix, payload);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        return broker.encodeFrame(1, payload);
+    }
+
+    @Benchmark
+    public String decodeLine() {
+        return broker.decodeLine(encodedLine.duplicate());
+    }
+
+    @Benchmark
+    public byte[] decodeFrame() {
+        return broker.decodeFrame(encodedFrame.duplicate());
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Cost of one broadcastToTopicSubscribers call as the topic's subscriber
+// count grows. Subscribers are in-process and drain instantly, so this is
+// matching, encoding and queueing, without socket writes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    private static final String TOPIC = "BENCH.FANOUT";
+
+    @Param({ "1", "10", "1000", "10000" })
+    public int subscribers;
+
+    @Param({ "text", "binary" })
+    public String protocol;
+
+    @Param({ "64" })
+    public int payloadBytes;
+
+    // Server --parallel-fanout threshold; 0 keeps every fan-out sequential
+    @Param({ "0" })
+    public int parallelFanOut;
+
+    private Broker broker;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broker = Broker.create("--queue-capacity=1024", "--parallel-fanout=" + parallelFanOut);
+        boolean binary = "binary".equals(protocol);
+        for (int i = 0; i < subscribers; i++) {
+            broker.connectSubscriber(TOPIC, binary);
+        }
+        payload = new byte[payloadBytes];
+        byte[] text = "benchmark payload ".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = text[i % text.length];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broker.broadcast(payload, "127.0.0.1:40000", TOPIC);
+    }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+// End-to-end publish-to-receive latency through a real server listener, one
+// text publisher and one text subscriber, over loopback TCP, a Unix domain
+// socket (--unix-socket) or shared-memory rings (--shm-dir). Each operation
+// sends one message and waits until the subscriber has read it, so the
+// samples are the full path through the server, including both hops.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackLatencyBenchmark {
+    private static final String TOPIC = "BENCH.LATENCY";
+
+    @Param({ "threads", "nio" })
+    public String io;
+
+    @Param({ "tcp", "unix", "shm" })
+    public String transport;
+
+    private Broker broker;
+    private Socket publisher;
+    private Socket subscriber;
+    private OutputStream publisherOut;
+    private BufferedReader subscriberIn;
+    private byte[] message;
+    private Path scratch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Under /dev/shm where there is one, so shared memory is not file-backed
+        Path shm = Paths.get("/dev/shm");
+        scratch = Files.isDirectory(shm) ? Files.createTempDirectory(shm, "bench")
+                : Files.createTempDirectory("bench");
+        Path socketPath = scratch.resolve("server.sock");
+        Path shmDir = scratch.resolve("shm");
+        broker = Broker.create("--io=" + io, "--log-level=WARN", "--unix-socket=" + socketPath,
+                "--shm-dir=" + shmDir);
+        int port = broker.listen();
+        String address = "tcp".equals(transport) ? "localhost"
+                : "unix".equals(transport) ? "unix:" + socketPath
+                : "shm:" + shmDir;
+
+        subscriber = broker.connect(address, port);
+        subscriberIn = new BufferedReader(new InputStreamReader(subscriber.getInputStream(),
+                StandardCharsets.UTF_8));
+        subscriber.getOutputStream().write(("SUBSCRIBER\n" + TOPIC + "\n").getBytes(StandardCharsets.UTF_8));
+        // Registered once the welcome line arrives
+        subscriberIn.readLine();
+
+        publisher = broker.connect(address, port);
+        publisherOut = publisher.getOutputStream();
+        publisherOut.write(("PUBLISHER\n" + TOPIC + "\n").getBytes(StandardCharsets.UTF_8));
+        message = "latency probe\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        publisher.close();
+        subscriber.close();
+        broker.close();
+        try (Stream<Path> files = Files.walk(scratch)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String publishToReceive() throws IOException {
+        publisherOut.write(message);
+        return subscriberIn.readLine();
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The whole publish path for one message: decoded from a publisher's input
+// buffer, routed, queued to every subscriber and drained again. Meant to be
+// run with -prof gc, whose gc.alloc.rate.norm is the heap allocated per
+// message; with the buffer pool on it is zero once the pool has warmed up.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishPathBenchmark {
+    private static final String TOPIC = "BENCH.PUBLISH";
+
+    @Param({ "text", "binary" })
+    public String protocol;
+
+    @Param({ "1", "100" })
+    public int subscribers;
+
+    @Param({ "64", "1024" })
+    public int payloadBytes;
+
+    // Server --buffer-pool-mb; 0 shows the allocation the pool saves
+    @Param({ "64" })
+    public int bufferPoolMegabytes;
+
+    private Broker broker;
+    private Object publisher;
+    private byte[] message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broker = Broker.create("--queue-capacity=1024", "--buffer-pool-mb=" + bufferPoolMegabytes);
+        boolean binary = "binary".equals(protocol);
+        for (int i = 0; i < subscribers; i++) {
+            broker.connectSubscriber(TOPIC, binary);
+        }
+        publisher = broker.connectPublisher(TOPIC, binary);
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        if (binary) {
+            ByteBuffer frame = broker.encodeFrame(broker.topicId(TOPIC), payload);
+            message = new byte[frame.remaining()];
+            frame.get(message);
+        } else {
+            message = Arrays.copyOf(payload, payload.length + 1);
+            message[payload.length] = '\n';
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        broker.receive(publisher, message);
+    }
+}
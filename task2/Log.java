@@ -0,0 +1,122 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log. Callers only append to a lock-free queue; a single
+// background thread does the console I/O, so routing threads never block on
+// System.out. Per-message events are DEBUG and off by default; guard any
+// message that is expensive to build with isDebugEnabled().
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // Events beyond this are dropped (and counted) rather than buffered
+    private static final int MAX_PENDING = 65536;
+
+    private static volatile Level level = Level.INFO;
+    private static final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile boolean writerParked = false;
+    private static final Thread writer = new Thread(Log::drain, "log-writer");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static final class Event {
+        final Level level;
+        final String message;
+
+        Event(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level eventLevel) {
+        return eventLevel != Level.OFF && eventLevel.compareTo(level) >= 0;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    private static void log(Level eventLevel, String message) {
+        if (!isEnabled(eventLevel)) {
+            return;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(new Event(eventLevel, message));
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Wait (up to a second) for queued events to be written, e.g. on shutdown
+    public static void flush() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (pending.get() > 0 && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            Event event;
+            while ((event = queue.poll()) != null) {
+                if (event.level.compareTo(Level.WARN) >= 0) {
+                    System.err.println(event.message);
+                } else {
+                    System.out.println(event.message);
+                }
+                pending.decrementAndGet();
+            }
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                System.err.println("Log queue full, dropped " + lost + " events");
+            }
+
+            // Park until a producer sees the flag; re-check so an event added
+            // just before the flag was set is not left waiting
+            writerParked = true;
+            if (queue.isEmpty()) {
+                LockSupport.park();
+            }
+            writerParked = false;
+        }
+    }
+}
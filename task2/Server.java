@@ -1,5 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -8,6 +13,9 @@ public class Server {
     private int port;
     private boolean running = false;
     private ExecutorService threadPool;
+    // Optional Unix domain socket listener beside the TCP port
+    private final Path unixSocketPath;
+    private ServerSocketChannel unixChannel;
 
     // Collections to manage connected clients
     private final Set<ClientHandler> publishers = Collections.synchronizedSet(new HashSet<>());
@@ -15,15 +23,43 @@ public class Server {
     private final Set<ClientHandler> allClients = Collections.synchronizedSet(new HashSet<>());
 
     public Server(int port) {
+        this(port, false);
+    }
+
+    public Server(int port, boolean virtualThreads) {
+        this(port, virtualThreads, null);
+    }
+
+    public Server(int port, boolean virtualThreads, Path unixSocketPath) {
         this.port = port;
-        this.threadPool = Executors.newCachedThreadPool();
+        this.unixSocketPath = unixSocketPath;
+        this.threadPool = virtualThreads ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+    }
+
+    // Virtual threads need Java 21+; looked up reflectively so the server still
+    // compiles and runs (on the cached pool) with older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not available on this JVM, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
     }
 
     public void start() {
         try {
+            // Bound first, so a client that reaches the port can reach the path
+            if (unixSocketPath != null) {
+                unixChannel = UnixSocket.bind(unixSocketPath);
+            }
             serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("Server started on port " + port);
+            Log.info("Server started on port " + port);
+            if (unixChannel != null) {
+                Log.info("Listening on Unix domain socket " + unixSocketPath);
+                startUnixAcceptor();
+            }
 
             while (running) {
                 try {
@@ -33,23 +69,49 @@ public class Server {
                     threadPool.execute(clientHandler);
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                        Log.error("Error accepting client connection: " + e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            Log.error("Server error: " + e.getMessage());
         } finally {
             stop();
         }
     }
 
+    // Unix domain connections are accepted on a thread of their own and then
+    // handled exactly like TCP ones, so both reach the same subscribers
+    private void startUnixAcceptor() {
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel channel = unixChannel.accept();
+                    ClientHandler clientHandler = new ClientHandler(
+                            new UnixSocket(channel, UnixSocket.describe(channel)), this);
+                    allClients.add(clientHandler);
+                    threadPool.execute(clientHandler);
+                } catch (IOException e) {
+                    if (running) {
+                        Log.error("Error accepting client connection: " + e.getMessage());
+                    }
+                }
+            }
+        }, "unix-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
     public void stop() {
         running = false;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (unixChannel != null) {
+                unixChannel.close();
+                Files.deleteIfExists(unixSocketPath);
+            }
 
             // Close all client connections
             synchronized (allClients) {
@@ -70,16 +132,19 @@ public class Server {
                 threadPool.shutdownNow();
             }
 
-            System.out.println("Server stopped.");
+            Log.info("Server stopped.");
+            Log.flush();
         } catch (IOException e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            Log.error("Error stopping server: " + e.getMessage());
         }
     }
 
     // Broadcast message from publisher to all subscribers
     public void broadcastToSubscribers(String message, String publisherInfo) {
         String formattedMessage = "[PUBLISHER " + publisherInfo + "]: " + message;
-        System.out.println("Broadcasting: " + formattedMessage);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Broadcasting: " + formattedMessage);
+        }
 
         synchronized (subscribers) {
             Iterator<ClientHandler> iterator = subscribers.iterator();
@@ -92,19 +157,21 @@ public class Server {
                 }
             }
         }
-        System.out.println("Message broadcasted to " + subscribers.size() + " subscribers");
+        if (Log.isDebugEnabled()) {
+            Log.debug("Message broadcasted to " + subscribers.size() + " subscribers");
+        }
     }
 
     // Register client as publisher
     public void registerPublisher(ClientHandler client) {
         publishers.add(client);
-        System.out.println("Publisher registered. Total publishers: " + publishers.size());
+        Log.info("Publisher registered. Total publishers: " + publishers.size());
     }
 
     // Register client as subscriber
     public void registerSubscriber(ClientHandler client) {
         subscribers.add(client);
-        System.out.println("Subscriber registered. Total subscribers: " + subscribers.size());
+        Log.info("Subscriber registered. Total subscribers: " + subscribers.size());
     }
 
     // Remove client from all collections
@@ -112,18 +179,43 @@ public class Server {
         publishers.remove(client);
         subscribers.remove(client);
         allClients.remove(client);
-        System.out.println("Client removed. Publishers: " + publishers.size() + ", Subscribers: " + subscribers.size());
+        Log.info("Client removed. Publishers: " + publishers.size() + ", Subscribers: " + subscribers.size());
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java Server <port>");
+        if (args.length < 1) {
+            printUsage();
             System.exit(1);
         }
 
+        boolean virtualThreads = false;
+        Path unixSocketPath = null;
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i].toLowerCase();
+            if (option.startsWith("--unix-socket=") && option.length() > "--unix-socket=".length()) {
+                // The path keeps its case
+                unixSocketPath = Paths.get(args[i].substring("--unix-socket=".length()));
+            } else if ("--io=virtual".equals(option)) {
+                virtualThreads = true;
+            } else if ("--io=threads".equals(option)) {
+                virtualThreads = false;
+            } else if (option.startsWith("--log-level=")) {
+                try {
+                    Log.setLevel(Log.Level.valueOf(option.substring("--log-level=".length()).toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid log level: " + args[i]);
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Invalid option: " + args[i]);
+                printUsage();
+                System.exit(1);
+            }
+        }
+
         try {
             int port = Integer.parseInt(args[0]);
-            Server server = new Server(port);
+            Server server = new Server(port, virtualThreads, unixSocketPath);
 
             // Add shutdown hook for graceful termination
             Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
@@ -134,6 +226,11 @@ public class Server {
             System.exit(1);
         }
     }
+
+    private static void printUsage() {
+        System.err.println("Usage: java Server <port> [--io=threads|virtual] [--log-level=debug|info|warn|error|off]"
+                + " [--unix-socket=<path>]");
+    }
 }
 
 // ClientHandler class to handle individual client connections
@@ -152,9 +249,10 @@ class ClientHandler implements Runnable {
         try {
             this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             this.out = new PrintWriter(socket.getOutputStream(), true);
-            this.clientInfo = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            this.clientInfo = socket instanceof UnixSocket ? socket.toString()
+                    : socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
         } catch (IOException e) {
-            System.err.println("Error setting up client handler: " + e.getMessage());
+            Log.error("Error setting up client handler: " + e.getMessage());
             disconnect();
         }
     }
@@ -162,7 +260,7 @@ class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            System.out.println("New client connected from: " + clientInfo);
+            Log.info("New client connected from: " + clientInfo);
 
             // First message should be the client type (PUBLISHER or SUBSCRIBER)
             String firstMessage = in.readLine();
@@ -174,14 +272,14 @@ class ClientHandler implements Runnable {
             if ("PUBLISHER".equalsIgnoreCase(firstMessage)) {
                 clientType = "PUBLISHER";
                 server.registerPublisher(this);
-                System.out.println("Client " + clientInfo + " registered as PUBLISHER");
+                Log.info("Client " + clientInfo + " registered as PUBLISHER");
             } else if ("SUBSCRIBER".equalsIgnoreCase(firstMessage)) {
                 clientType = "SUBSCRIBER";
                 server.registerSubscriber(this);
-                System.out.println("Client " + clientInfo + " registered as SUBSCRIBER");
+                Log.info("Client " + clientInfo + " registered as SUBSCRIBER");
                 sendMessage("Welcome! You are now subscribed to publisher messages.");
             } else {
-                System.err.println("Invalid client type from " + clientInfo + ": " + firstMessage);
+                Log.warn("Invalid client type from " + clientInfo + ": " + firstMessage);
                 disconnect();
                 return;
             }
@@ -190,11 +288,13 @@ class ClientHandler implements Runnable {
             String message;
             while (connected && (message = in.readLine()) != null) {
                 if ("terminate".equals(message)) {
-                    System.out.println(clientType + " " + clientInfo + " requested termination");
+                    Log.info(clientType + " " + clientInfo + " requested termination");
                     break;
                 }
 
-                System.out.println(clientType + " " + clientInfo + ": " + message);
+                if (Log.isDebugEnabled()) {
+                    Log.debug(clientType + " " + clientInfo + ": " + message);
+                }
 
                 // If it's a publisher, broadcast to all subscribers
                 if ("PUBLISHER".equals(clientType)) {
@@ -203,7 +303,7 @@ class ClientHandler implements Runnable {
             }
 
         } catch (IOException e) {
-            System.err.println("Error handling client " + clientInfo + ": " + e.getMessage());
+            Log.error("Error handling client " + clientInfo + ": " + e.getMessage());
         } finally {
             disconnect();
         }
@@ -233,9 +333,9 @@ class ClientHandler implements Runnable {
             if (socket != null && !socket.isClosed())
                 socket.close();
         } catch (IOException e) {
-            System.err.println("Error disconnecting client " + clientInfo + ": " + e.getMessage());
+            Log.error("Error disconnecting client " + clientInfo + ": " + e.getMessage());
         }
 
-        System.out.println("Client " + clientInfo + " (" + clientType + ") disconnected");
+        Log.info("Client " + clientInfo + " (" + clientType + ") disconnected");
     }
 }
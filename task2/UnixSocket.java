@@ -0,0 +1,119 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An accepted Unix domain socket (--unix-socket) behind the Socket API, which
+// the JDK only offers for TCP, so ClientHandler uses it like any other
+// socket. The streams read and write the
+// channel directly rather than through Channels.newInputStream, whose
+// streams share one lock: a handler blocked reading would otherwise hold up
+// every broadcast to it.
+class UnixSocket extends Socket {
+    private static final AtomicInteger nextConnection = new AtomicInteger();
+
+    private final SocketChannel channel;
+    private final String description;
+    private final InputStream input = new ChannelInput();
+    private final OutputStream output = new ChannelOutput();
+
+    UnixSocket(SocketChannel channel, String description) {
+        this.channel = channel;
+        this.description = description;
+    }
+
+    // Listen on path, replacing a socket file left behind by an earlier run
+    static ServerSocketChannel bind(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(path));
+        return channel;
+    }
+
+    // Client info for an accepted connection. Client ends are unnamed, so
+    // connections are told apart by number.
+    static String describe(SocketChannel channel) {
+        String path;
+        try {
+            path = ((UnixDomainSocketAddress) channel.getLocalAddress()).getPath().toString();
+        } catch (IOException e) {
+            path = "unknown";
+        }
+        return "unix:" + path + "#" + nextConnection.incrementAndGet();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    // No Nagle's algorithm to turn off
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private final class ChannelInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    private final class ChannelOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
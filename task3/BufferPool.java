@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Recycled frame buffers for the publish path (--buffer-pool-mb). A message
+// is copied once from the publisher's input buffer into a pooled buffer,
+// which every subscriber's outbound queue then shares by reference count;
+// the last writer to finish with it hands it back. At a steady rate the
+// same buffers circulate and publishing allocates nothing.
+//
+// Buffers come in power-of-two size classes from 64 bytes to 64 KiB, each
+// class holding up to an equal share of the configured memory; larger
+// frames, and anything freed into a full class, are simply left to the GC.
+// Direct buffers (the default) keep the pooled memory off the heap, out of
+// the GC's way. They save no copy: every writer gathers frames into a buffer
+// of its own first (the nio event loop's direct write buffer, the blocking
+// writers' heap batch, the shared-memory ring), so only the nio path writes
+// to the socket from a direct buffer, and it does whichever kind the pool
+// hands out.
+public class BufferPool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+
+    private final ArrayBlockingQueue<PooledBuffer>[] classes;
+    private final boolean direct;
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public BufferPool(long maxBytes, boolean direct) {
+        this.direct = direct;
+        int count = MAX_SHIFT - MIN_SHIFT + 1;
+        classes = new ArrayBlockingQueue[count];
+        for (int i = 0; i < count; i++) {
+            long buffers = maxBytes / count >> (MIN_SHIFT + i);
+            classes[i] = buffers > 0 ? new ArrayBlockingQueue<>((int) Math.min(buffers, 1 << 20)) : null;
+        }
+    }
+
+    // A buffer with one reference, its limit set to length and its contents
+    // undefined
+    public PooledBuffer allocate(int length) {
+        int index = classIndex(length);
+        ArrayBlockingQueue<PooledBuffer> free = index < classes.length ? classes[index] : null;
+        if (free == null) {
+            return new PooledBuffer(null, newBuffer(length), length);
+        }
+        PooledBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, newBuffer(1 << (MIN_SHIFT + index)), length);
+        } else {
+            buffer.reuse(length);
+        }
+        return buffer;
+    }
+
+    private static int classIndex(int length) {
+        if (length <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    private ByteBuffer newBuffer(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    void recycle(PooledBuffer buffer) {
+        classes[classIndex(buffer.buffer().capacity())].offer(buffer);
+    }
+
+    // Buffers waiting for reuse, for the statistics
+    public int idleBuffers() {
+        int idle = 0;
+        for (ArrayBlockingQueue<PooledBuffer> free : classes) {
+            if (free != null) {
+                idle += free.size();
+            }
+        }
+        return idle;
+    }
+}
+
+// A frame in a buffer shared by reference count: [0, limit) holds the
+// frame, and readers use absolute gets only, as any number of writer
+// threads read it at once. Every holder (an outbound queue entry, a
+// message being routed, a history slot) owns one reference and releases it
+// exactly once; the buffer must not be touched after that.
+class PooledBuffer {
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "references");
+
+    // Shared empty frame; wakes a parked writer without carrying data
+    static final PooledBuffer EMPTY = control(ByteBuffer.allocate(0));
+
+    // Null for buffers that are left to the GC
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    // A BIND, an INFO line or EMPTY, which the overflow policy never drops
+    private final boolean control;
+    private volatile int references = 1;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int length) {
+        this(pool, buffer, length, false);
+    }
+
+    private PooledBuffer(BufferPool pool, ByteBuffer buffer, int length, boolean control) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.control = control;
+        buffer.limit(length);
+    }
+
+    // An unpooled message (replays): release() is a no-op. The frame must
+    // start at position 0.
+    static PooledBuffer wrap(ByteBuffer frame) {
+        return new PooledBuffer(null, frame, frame.limit());
+    }
+
+    // wrap() for a control frame
+    static PooledBuffer control(ByteBuffer frame) {
+        return new PooledBuffer(null, frame, frame.limit(), true);
+    }
+
+    boolean isControl() {
+        return control;
+    }
+
+    void reuse(int length) {
+        buffer.clear().limit(length);
+        references = 1;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return buffer.limit();
+    }
+
+    PooledBuffer retain() {
+        if (pool != null) {
+            REFERENCES.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    void release() {
+        if (pool != null && REFERENCES.decrementAndGet(this) == 0) {
+            pool.recycle(this);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
 
 public class Client {
     private Socket socket;
@@ -10,38 +14,111 @@ public class Client {
     private int serverPort;
     private String clientType;
     private String topic;
+    // Further topics from a comma-separated topic argument
+    private final List<String> extraTopics = new ArrayList<>();
     private boolean connected = false;
     private Thread messageListener;
 
+    // Binary framing mode (see MessageCodec)
+    private final boolean binary;
+    private DataOutputStream binaryOut;
+    private DataInputStream binaryIn;
+    private int topicId;
+    // Concrete topic names by id, from the server's BIND frames
+    private final Map<Integer, String> topicNames = new HashMap<>();
+    // Ids of the topics this publisher has declared
+    private final Map<String, Integer> publishTopicIds = new HashMap<>();
+
+    // Credit-based flow control: the subscriber lets the server send this
+    // many messages ahead and tops the window up as it consumes them (0 = off)
+    private final int creditWindow;
+    private int consumedSinceGrant = 0;
+
+    // Non-interactive publishing from this file, or stdin for "-" (null =
+    // interactive); see startBulkPublisher()
+    private final String bulkSource;
+    private static final int BULK_WRITE_BYTES = 64 * 1024;
+
+    // Server address prefix for a shared-memory session in the server's
+    // --shm-dir, e.g. shm:/dev/shm/pubsub; the port is then ignored
+    static final String SHM_PREFIX = "shm:";
+    // Prefix for the server's --unix-socket path, e.g. unix:/tmp/pubsub.sock;
+    // the port is then ignored
+    static final String UNIX_PREFIX = "unix:";
+
     public Client(String serverAddress, int serverPort, String clientType, String topic) {
+        this(serverAddress, serverPort, clientType, topic, false);
+    }
+
+    public Client(String serverAddress, int serverPort, String clientType, String topic, boolean binary) {
+        this(serverAddress, serverPort, clientType, topic, binary, 0);
+    }
+
+    public Client(String serverAddress, int serverPort, String clientType, String topic, boolean binary,
+            int creditWindow) {
+        this(serverAddress, serverPort, clientType, topic, binary, creditWindow, null);
+    }
+
+    public Client(String serverAddress, int serverPort, String clientType, String topic, boolean binary,
+            int creditWindow, String bulkSource) {
+        this.bulkSource = bulkSource;
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
         this.clientType = clientType.toUpperCase();
-        this.topic = topic.toUpperCase();
+        // The first topic goes in the handshake, the rest are added in-band
+        String[] topics = topic.toUpperCase().split(",");
+        this.topic = topics[0];
+        for (int i = 1; i < topics.length; i++) {
+            extraTopics.add(topics[i]);
+        }
+        // Bulk lines are published as they are, so they go in PUBLISH_BATCH
+        // frames: as text lines, one reading "terminate" or starting with
+        // "PUBLISH " would be taken as a command
+        this.binary = binary || bulkSource != null;
+        this.creditWindow = "SUBSCRIBER".equals(this.clientType) ? creditWindow : 0;
     }
 
     public void start() {
         try {
             // Connect to server
-            socket = new Socket(serverAddress, serverPort);
+            socket = openSocket(serverAddress, serverPort);
             connected = true;
-            System.out.println("Connected to server at " + serverAddress + ":" + serverPort);
+            System.out.println("Connected to server at " + serverAddress
+                    + (serverAddress.startsWith(SHM_PREFIX) || serverAddress.startsWith(UNIX_PREFIX)
+                            ? "" : ":" + serverPort));
             System.out.println("Client mode: " + clientType);
             System.out.println("Topic: " + topic);
+            System.out.println("Protocol: " + (binary ? "binary" : "text"));
+            if (creditWindow > 0) {
+                System.out.println("Credit window: " + creditWindow);
+            }
             System.out.println("========================================");
 
-            // Set up input/output streams
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (binary) {
+                startBinarySession();
+            } else {
+                // Set up input/output streams
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                // Send client type to server as first message. A text
+                // publisher registers as MULTI so its 'publish <topic>'
+                // prompt command can reach other topics.
+                out.println("PUBLISHER".equals(clientType) ? MessageCodec.MULTI_HANDSHAKE : clientType);
 
-            // Send client type to server as first message
-            out.println(clientType);
+                // Initial credit goes before the topic, so nothing is sent unpaced
+                if (creditWindow > 0) {
+                    out.println("CREDIT " + creditWindow);
+                }
 
-            // Send topic to server as second message
-            out.println(topic);
+                // Send topic to server as second message
+                out.println(topic);
+            }
 
             if ("SUBSCRIBER".equals(clientType)) {
                 startSubscriber();
+            } else if ("PUBLISHER".equals(clientType) && bulkSource != null) {
+                startBulkPublisher();
             } else if ("PUBLISHER".equals(clientType)) {
                 startPublisher();
             } else {
@@ -58,16 +135,34 @@ public class Client {
         }
     }
 
-    private void startSubscriber() {
+    // A TCP connection, a Unix domain one for a UNIX_PREFIX address, or a
+    // shared-memory session for a SHM_PREFIX address
+    static Socket openSocket(String serverAddress, int serverPort) throws IOException {
+        if (serverAddress.startsWith(UNIX_PREFIX)) {
+            return UnixSocket.connect(Paths.get(serverAddress.substring(UNIX_PREFIX.length())));
+        }
+        if (serverAddress.startsWith(SHM_PREFIX)) {
+            return ShmSocket.connect(Paths.get(serverAddress.substring(SHM_PREFIX.length())),
+                    ShmSession.DEFAULT_RING_BYTES);
+        }
+        return new Socket(serverAddress, serverPort);
+    }
+
+    private void startSubscriber() throws IOException {
         System.out.println("=== SUBSCRIBER MODE - TOPIC: " + topic + " ===");
         System.out.println("Listening for messages from publishers on topic: " + topic);
-        System.out.println("You will only receive messages published to this topic.");
+        System.out.println("You will only receive messages published to your topics.");
+        System.out.println("Type 'subscribe <topic>' or 'unsubscribe <topic>' to change topics.");
         System.out.println("Type 'terminate' to exit.");
         System.out.println("=============================================");
 
         // Start thread to listen for incoming messages from server
         startMessageListener();
 
+        for (String extra : extraTopics) {
+            sendSubscription(MessageCodec.FRAME_SUBSCRIBE, "SUBSCRIBE", extra);
+        }
+
         // Scanner to handle user input for termination
         Scanner scanner = new Scanner(System.in);
         String userInput;
@@ -76,20 +171,30 @@ public class Client {
             userInput = scanner.nextLine();
             if ("terminate".equals(userInput)) {
                 System.out.println("Terminating subscriber connection...");
-                out.println("terminate");
+                sendTerminate();
                 break;
             }
+            if (startsWithCommand(userInput, "subscribe ")) {
+                sendSubscription(MessageCodec.FRAME_SUBSCRIBE, "SUBSCRIBE", topicArgument(userInput));
+                continue;
+            }
+            if (startsWithCommand(userInput, "unsubscribe ")) {
+                sendSubscription(MessageCodec.FRAME_UNSUBSCRIBE, "UNSUBSCRIBE", topicArgument(userInput));
+                continue;
+            }
             // Subscribers don't send regular messages, only listen
-            System.out.println("(Subscribers only receive messages. Type 'terminate' to exit)");
+            System.out.println("(Subscribers only receive messages. Type 'subscribe <topic>', "
+                    + "'unsubscribe <topic>' or 'terminate')");
         }
 
         scanner.close();
     }
 
-    private void startPublisher() {
+    private void startPublisher() throws IOException {
         System.out.println("=== PUBLISHER MODE - TOPIC: " + topic + " ===");
         System.out.println("Type messages to publish to all subscribers of topic: " + topic);
         System.out.println("Your messages will only be sent to subscribers of this topic.");
+        System.out.println("Type 'publish <topic> <message>' to publish to another topic.");
         System.out.println("Type 'terminate' to exit.");
         System.out.println("============================================");
 
@@ -100,24 +205,269 @@ public class Client {
             System.out.print("Publish to " + topic + ": ");
             userInput = scanner.nextLine();
 
-            // Send message to server
-            out.println(userInput);
-
             // Check if user wants to terminate
             if ("terminate".equals(userInput)) {
+                sendTerminate();
                 System.out.println("Terminating publisher connection...");
                 break;
             }
+
+            if (startsWithCommand(userInput, "publish ")) {
+                String rest = userInput.substring("publish ".length()).trim();
+                int space = rest.indexOf(' ');
+                String target = (space < 0 ? rest : rest.substring(0, space)).toUpperCase();
+                publishTo(target, space < 0 ? "" : rest.substring(space + 1));
+                continue;
+            }
+
+            // Send message to server
+            sendMessage(userInput);
         }
 
         scanner.close();
     }
 
+    // Publish every line of the bulk source, then disconnect and report the
+    // rate. Lines are packed into PUBLISH_BATCH frames of up to
+    // BULK_WRITE_BYTES, each one write, instead of one flush per line; a
+    // write goes out early only when the source has nothing more ready, so
+    // a slow source is not held back.
+    private void startBulkPublisher() throws IOException {
+        System.out.println("=== BULK PUBLISHER - TOPIC: " + topic + " ===");
+        System.out.println("Publishing every line of " + ("-".equals(bulkSource) ? "standard input" : bulkSource));
+
+        OutputStream rawOut = socket.getOutputStream();
+        byte[] pending = new byte[BULK_WRITE_BYTES];
+        int batchStart = MessageCodec.HEADER_LENGTH;
+        int used = batchStart;
+        long messages = 0;
+        long bytes = 0;
+        long writes = 0;
+        long skipped = 0;
+        long start = System.nanoTime();
+        try (BufferedReader source = "-".equals(bulkSource)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(bulkSource), StandardCharsets.UTF_8)) {
+            String line;
+            while (connected && (line = source.readLine()) != null) {
+                byte[] message = line.getBytes(StandardCharsets.UTF_8);
+                if (message.length > MessageCodec.MAX_PAYLOAD - 4) {
+                    skipped++;
+                    continue;
+                }
+                // Each batch entry starts with its length
+                int entryLength = message.length + 4;
+                if (used + entryLength > pending.length && used > batchStart) {
+                    writeBulk(rawOut, pending, used);
+                    writes++;
+                    used = batchStart;
+                }
+                if (batchStart + entryLength > pending.length) {
+                    // Larger than a whole write: goes out on its own
+                    pending = Arrays.copyOf(pending, batchStart + entryLength);
+                }
+                ByteBuffer.wrap(pending, used, 4).putInt(message.length);
+                System.arraycopy(message, 0, pending, used + 4, message.length);
+                used += entryLength;
+                messages++;
+                bytes += message.length;
+                if (!source.ready() || pending.length > BULK_WRITE_BYTES) {
+                    writeBulk(rawOut, pending, used);
+                    writes++;
+                    used = batchStart;
+                    if (pending.length > BULK_WRITE_BYTES) {
+                        // Back to the usual size after an oversized line
+                        pending = new byte[BULK_WRITE_BYTES];
+                    }
+                }
+            }
+            if (used > batchStart) {
+                writeBulk(rawOut, pending, used);
+                writes++;
+            }
+        }
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        sendTerminate();
+
+        System.out.printf("Published %d messages (%.1f MB) in %.3f s: %.0f messages/s, %.1f MB/s%n", messages,
+                bytes / 1e6, seconds, messages / seconds, bytes / 1e6 / seconds);
+        System.out.printf("%d writes, %.1f messages per write%n", writes, writes == 0 ? 0.0 : (double) messages / writes);
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " lines longer than " + MessageCodec.MAX_PAYLOAD + " bytes");
+        }
+    }
+
+    // One bulk write: a PUBLISH_BATCH frame whose header goes in front of
+    // its entries
+    private void writeBulk(OutputStream rawOut, byte[] pending, int used) throws IOException {
+        MessageCodec.putHeader(ByteBuffer.wrap(pending), MessageCodec.FRAME_PUBLISH_BATCH, topicId,
+                used - MessageCodec.HEADER_LENGTH);
+        rawOut.write(pending, 0, used);
+        rawOut.flush();
+    }
+
+    // Binary handshake: the BINARY line, a registration frame, then wait for
+    // the BIND frame carrying the id our topic travels under
+    private void startBinarySession() throws IOException {
+        OutputStream rawOut = socket.getOutputStream();
+        rawOut.write((MessageCodec.BINARY_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+        binaryOut = new DataOutputStream(new BufferedOutputStream(rawOut));
+        binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        if (creditWindow > 0) {
+            writeCredit(creditWindow);
+        }
+        byte registration = "PUBLISHER".equals(clientType) ? MessageCodec.FRAME_PUBLISHER
+                : MessageCodec.FRAME_SUBSCRIBER;
+        MessageCodec.writeFrame(binaryOut, registration, 0, topic.getBytes(StandardCharsets.UTF_8));
+        binaryOut.flush();
+
+        MessageCodec.Frame frame = MessageCodec.readFrame(binaryIn);
+        if (frame == null || frame.type != MessageCodec.FRAME_BIND) {
+            throw new IOException("Server did not accept binary registration");
+        }
+        messageConsumed();
+        topicId = frame.topicId;
+        topicNames.put(topicId, topic);
+        publishTopicIds.put(topic, topicId);
+    }
+
+    private static boolean startsWithCommand(String line, String command) {
+        return line.regionMatches(true, 0, command, 0, command.length());
+    }
+
+    // Topic after a command word, normalized like the topic argument
+    private static String topicArgument(String command) {
+        return command.substring(command.indexOf(' ') + 1).trim().replace(" ", "_").toUpperCase();
+    }
+
+    // SUBSCRIBE / UNSUBSCRIBE over the current connection; the server answers
+    // through the message listener (and, in binary mode, a BIND)
+    private void sendSubscription(byte frameType, String command, String name) throws IOException {
+        if (binary) {
+            // binaryOut is shared with the listener thread's credit grants
+            synchronized (this) {
+                MessageCodec.writeFrame(binaryOut, frameType, 0, name.getBytes(StandardCharsets.UTF_8));
+                binaryOut.flush();
+            }
+        } else {
+            out.println(command + " " + name);
+        }
+    }
+
+    // Send more credit to the server
+    private void writeCredit(int n) throws IOException {
+        if (binary) {
+            synchronized (this) {
+                MessageCodec.writeFrame(binaryOut, MessageCodec.FRAME_CREDIT, 0,
+                        ByteBuffer.allocate(4).putInt(n).array());
+                binaryOut.flush();
+            }
+        } else {
+            out.println("CREDIT " + n);
+        }
+    }
+
+    // Count one frame (or line) received; once half the window is used, grant
+    // it back so the server never runs dry while we keep up
+    private void messageConsumed() throws IOException {
+        if (creditWindow <= 0) {
+            return;
+        }
+        consumedSinceGrant++;
+        if (consumedSinceGrant >= Math.max(1, creditWindow / 2)) {
+            writeCredit(consumedSinceGrant);
+            consumedSinceGrant = 0;
+        }
+    }
+
+    // Publish to a topic other than the handshake one. In binary mode the
+    // topic is declared once with a PUBLISHER frame and used by its id.
+    private void publishTo(String target, String message) throws IOException {
+        if (!binary) {
+            out.println("PUBLISH " + target + " " + message);
+            return;
+        }
+        Integer id = publishTopicIds.get(target);
+        if (id == null) {
+            MessageCodec.writeFrame(binaryOut, MessageCodec.FRAME_PUBLISHER, 0,
+                    target.getBytes(StandardCharsets.UTF_8));
+            binaryOut.flush();
+            MessageCodec.Frame reply = MessageCodec.readFrame(binaryIn);
+            if (reply == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            if (reply.type != MessageCodec.FRAME_BIND) {
+                // Topic was rejected; the reply says why
+                System.out.println(reply.payloadText());
+                return;
+            }
+            id = reply.topicId;
+            publishTopicIds.put(target, id);
+        }
+        MessageCodec.writeFrame(binaryOut, MessageCodec.FRAME_MESSAGE, id, message.getBytes(StandardCharsets.UTF_8));
+        binaryOut.flush();
+    }
+
+    private void sendMessage(String message) throws IOException {
+        if (binary) {
+            MessageCodec.writeFrame(binaryOut, MessageCodec.FRAME_MESSAGE, topicId,
+                    message.getBytes(StandardCharsets.UTF_8));
+            binaryOut.flush();
+        } else {
+            out.println(message);
+        }
+    }
+
+    private void sendTerminate() {
+        try {
+            if (binary) {
+                synchronized (this) {
+                    MessageCodec.writeFrame(binaryOut, MessageCodec.FRAME_TERMINATE, topicId, new byte[0]);
+                    binaryOut.flush();
+                }
+            } else {
+                out.println("terminate");
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending terminate: " + e.getMessage());
+        }
+    }
+
+    // Next line to display: a text line, or a decoded binary frame
+    private String readMessage() throws IOException {
+        if (!binary) {
+            String line = in.readLine();
+            if (line != null) {
+                messageConsumed();
+            }
+            return line;
+        }
+        MessageCodec.Frame frame = MessageCodec.readFrame(binaryIn);
+        if (frame == null) {
+            return null;
+        }
+        messageConsumed();
+        // A wildcard subscription gets a BIND for each concrete topic it sees
+        while (frame.type == MessageCodec.FRAME_BIND) {
+            topicNames.put(frame.topicId, frame.payloadText());
+            frame = MessageCodec.readFrame(binaryIn);
+            if (frame == null) {
+                return null;
+            }
+            messageConsumed();
+        }
+        if (frame.type == MessageCodec.FRAME_MESSAGE) {
+            return "[TOPIC:" + topicNames.getOrDefault(frame.topicId, topic) + "]: " + frame.payloadText();
+        }
+        return frame.payloadText();
+    }
+
     private void startMessageListener() {
         messageListener = new Thread(() -> {
             try {
                 String message;
-                while (connected && (message = in.readLine()) != null) {
+                while (connected && (message = readMessage()) != null) {
                     // Display received message with timestamp
                     String timestamp = java.time.LocalTime.now().toString().substring(0, 8);
                     System.out.println("\n[" + timestamp + "] " + message);
@@ -149,6 +499,12 @@ public class Client {
             if (in != null) {
                 in.close();
             }
+            if (binaryOut != null) {
+                binaryOut.close();
+            }
+            if (binaryIn != null) {
+                binaryIn.close();
+            }
             if (socket != null) {
                 socket.close();
             }
@@ -159,18 +515,64 @@ public class Client {
     }
 
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.err.println("Usage: java Client <server_ip> <port> <PUBLISHER|SUBSCRIBER> <topic>");
+        if (args.length >= 3 && "LOAD".equalsIgnoreCase(args[2])) {
+            runLoad(args);
+            return;
+        }
+        boolean binary = false;
+        int credit = 0;
+        String bulk = null;
+        String group = null;
+        boolean validOptions = args.length >= 4;
+        for (int i = 4; i < args.length && validOptions; i++) {
+            if ("--binary".equals(args[i])) {
+                binary = true;
+            } else if ("--bulk".equals(args[i])) {
+                bulk = "-";
+            } else if (args[i].startsWith("--bulk=") && args[i].length() > "--bulk=".length()) {
+                bulk = args[i].substring("--bulk=".length());
+            } else if (args[i].startsWith("--group=") && args[i].length() > "--group=".length()
+                    && !args[i].contains(" ")) {
+                group = args[i].substring("--group=".length());
+            } else if (args[i].startsWith("--credit=")) {
+                try {
+                    credit = Integer.parseInt(args[i].substring("--credit=".length()));
+                    validOptions = credit > 0;
+                } catch (NumberFormatException e) {
+                    validOptions = false;
+                }
+            } else {
+                validOptions = false;
+            }
+        }
+        if (!validOptions) {
+            System.err.println("Usage: java Client <server_ip> <port> <PUBLISHER|SUBSCRIBER> <topic>[,<topic>...] "
+                    + "[--binary] [--credit=<n>] [--bulk[=<file>]] [--group=<name>]");
             System.err.println("Examples:");
             System.err.println("  java Client localhost 5000 PUBLISHER SPORTS");
             System.err.println("  java Client localhost 5000 SUBSCRIBER SPORTS");
             System.err.println("  java Client 192.168.10.2 5000 PUBLISHER NEWS");
             System.err.println("  java Client 192.168.10.2 5000 SUBSCRIBER WEATHER");
+            System.err.println("  java Client localhost 5000 SUBSCRIBER SPORTS.#,NEWS,WEATHER");
+            System.err.println("  java Client localhost 5000 SUBSCRIBER NEWS --credit=64");
+            System.err.println("  java Client localhost 5000 SUBSCRIBER ORDERS --group=workers");
+            System.err.println("  java Client localhost 5000 PUBLISHER NEWS --bulk=messages.txt");
+            System.err.println("  java Client unix:/tmp/pubsub.sock 0 SUBSCRIBER NEWS");
+            System.err.println("  java Client shm:/dev/shm/pubsub 0 SUBSCRIBER NEWS --binary");
+            System.err.println("  java Client localhost 5000 LOAD --publishers=4 --subscribers=16 --rate=20000");
             System.err.println();
             System.err.println("Features:");
             System.err.println("  - Publishers send messages only to subscribers of the same topic");
             System.err.println("  - Subscribers receive messages only from publishers of the same topic");
             System.err.println("  - Multiple topics can be active simultaneously");
+            System.err.println("  - --binary uses length-prefixed binary frames instead of text lines");
+            System.err.println("  - --credit=<n> lets the server send a subscriber at most n messages ahead");
+            System.err.println("  - --group=<name> joins a consumer group: each message goes to one member");
+            System.err.println("  - --bulk publishes every line of stdin (or of a file), in binary batches, and"
+                    + " reports the rate");
+            System.err.println("  - A unix:<path> address connects to the server's --unix-socket");
+            System.err.println("  - A shm:<dir> address connects through the server's --shm-dir on this host");
+            System.err.println("  - LOAD runs a headless load test instead; 'LOAD --help' lists its options");
             System.exit(1);
         }
 
@@ -191,12 +593,37 @@ public class Client {
             System.exit(1);
         }
 
-        // Remove any spaces from topic and convert to uppercase for consistency
-        topic = topic.trim().replace(" ", "_").toUpperCase();
+        // Remove any spaces from each topic and convert to uppercase for consistency
+        StringBuilder topics = new StringBuilder();
+        for (String name : topic.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            if (topics.length() > 0) {
+                topics.append(',');
+            }
+            topics.append(name.trim().replace(" ", "_").toUpperCase());
+            if (group != null) {
+                topics.append(" GROUP ").append(group);
+            }
+        }
+        if (topics.length() == 0) {
+            System.err.println("Topic cannot be empty");
+            System.exit(1);
+        }
+        topic = topics.toString();
 
         try {
             int port = Integer.parseInt(args[1]);
-            Client client = new Client(serverAddress, port, clientType, topic);
+            if (bulk != null && !"PUBLISHER".equalsIgnoreCase(clientType)) {
+                System.err.println("--bulk is for publishers");
+                System.exit(1);
+            }
+            if (group != null && !"SUBSCRIBER".equalsIgnoreCase(clientType)) {
+                System.err.println("--group is for subscribers");
+                System.exit(1);
+            }
+            Client client = new Client(serverAddress, port, clientType, topic, binary, credit, bulk);
 
             // Add shutdown hook for graceful termination
             Runtime.getRuntime().addShutdownHook(new Thread(client::stop));
@@ -207,4 +634,31 @@ public class Client {
             System.exit(1);
         }
     }
+
+    // Headless mode: drive the server with generated load and report
+    // throughput and latency (see LoadGenerator)
+    private static void runLoad(String[] args) {
+        if (args.length < 3 || Arrays.asList(args).contains("--help")) {
+            System.err.println("Usage: java Client <server_ip> <port> LOAD [options]");
+            LoadGenerator.printOptions();
+            System.exit(1);
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]));
+            generator.parse(args, 3);
+            generator.run();
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port number: " + args[1]);
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            LoadGenerator.printOptions();
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Load test failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
@@ -0,0 +1,495 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// Client library for processes that embed many subscribers: any number of
+// subscriptions share one connection and its one reader thread, which
+// demultiplexes the server's MESSAGE frames by topic id to every local
+// subscription matching the topic. Each subscription is delivered either
+// to a handler, called on the reader thread, or to a bounded queue the
+// application takes from.
+//
+// The connection speaks the binary protocol (see MessageCodec). The first
+// subscribe() registers it as a SUBSCRIBER, later ones send SUBSCRIBE, and
+// a subscription made several times locally is made once on the server.
+// subscribe() returns once the server has answered, so everything published
+// after that reaches the new subscription. A "<topic> FROM <offset>" request
+// replays the topic's log first, and "<topic> GROUP <name>" joins a consumer
+// group, as for any subscriber. Messages carry only their topic, so every
+// local subscription matching it gets them: a connection that is both a
+// group member and a plain subscriber of a topic sees the group's share
+// twice over, and should be split in two.
+//
+// A handler runs on the reader thread, which is the thread that receives the
+// server's answer, so it cannot wait for one: from a handler, subscribe()
+// only adds local subscriptions to topics the connection already has and
+// throws IllegalStateException for a new one.
+//
+// The reader delivers in order, so a slow handler or a full queue holds up
+// every subscription on the connection; with a credit window the server
+// then keeps messages back for it rather than filling the socket.
+public class ClientConnection implements Closeable {
+    private static final Subscription[] NONE = new Subscription[0];
+    // How long subscribe() waits for the server's answer
+    private static final long SUBSCRIBE_TIMEOUT_SECONDS = 10;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final int creditWindow;
+    private final Thread reader;
+
+    // Guarded by this, which also serializes writes to out
+    private boolean registered = false;
+    private boolean closed = false;
+    // Subscribe requests waiting for the server's answer, in the order sent
+    private final ArrayDeque<PendingSubscribe> pending = new ArrayDeque<>();
+    // Replaced on every change, so the reader routes without locking
+    private volatile Subscription[] subscriptions = NONE;
+
+    // Reader thread only: concrete topic names by id, from the server's BIND
+    // frames, and the subscriptions each topic id routes to, computed from
+    // the subscriptions array in routedFrom
+    private final Map<Integer, String> topicNames = new HashMap<>();
+    private final Map<Integer, Subscription[]> routes = new HashMap<>();
+    private Subscription[] routedFrom = NONE;
+    private int consumedSinceGrant = 0;
+
+    public ClientConnection(String serverAddress, int serverPort) throws IOException {
+        this(serverAddress, serverPort, 0);
+    }
+
+    // creditWindow > 0 lets the server send at most that many frames ahead
+    // of the reader (see the CREDIT frame)
+    public ClientConnection(String serverAddress, int serverPort, int creditWindow) throws IOException {
+        this.socket = Client.openSocket(serverAddress, serverPort);
+        this.creditWindow = creditWindow;
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream rawOut = socket.getOutputStream();
+            rawOut.write((MessageCodec.BINARY_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+            out = new DataOutputStream(new BufferedOutputStream(rawOut));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (creditWindow > 0) {
+                writeCredit(creditWindow);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        reader = new Thread(this::readLoop, "client-connection-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Subscribe with a handler, called on the connection's reader thread
+    // for each message on a matching topic
+    public Subscription subscribe(String topic, Consumer<Message> handler) throws IOException {
+        return add(new Subscription(this, topic, Objects.requireNonNull(handler), 0));
+    }
+
+    // Subscribe into a queue of up to queueCapacity messages, read with
+    // Subscription.take() or poll()
+    public Subscription subscribe(String topic, int queueCapacity) throws IOException {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        return add(new Subscription(this, topic, null, queueCapacity));
+    }
+
+    private Subscription add(Subscription subscription) throws IOException {
+        String pattern = subscription.pattern;
+        String key = subscription.key;
+        String invalid = pattern.isEmpty() ? "topic cannot be empty" : TopicTrie.validate(pattern);
+        if (invalid != null) {
+            throw new IllegalArgumentException("Invalid topic: " + invalid);
+        }
+        PendingSubscribe request = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection is closed");
+            }
+            if (!isSubscribed(key)) {
+                if (Thread.currentThread() == reader) {
+                    throw new IllegalStateException("Cannot subscribe to " + subscription.topic
+                            + " from a handler: the answer arrives on the thread the handler runs on");
+                }
+                request = new PendingSubscribe(pattern, key);
+                pending.add(request);
+                writeFrame(registered ? MessageCodec.FRAME_SUBSCRIBE : MessageCodec.FRAME_SUBSCRIBER,
+                        subscription.topic);
+                registered = true;
+            }
+            Subscription[] current = subscriptions;
+            Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+        if (request != null) {
+            try {
+                request.answer.get(SUBSCRIBE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                remove(key);
+                throw new IOException(e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                abandon(request);
+                throw new IOException("No answer from the server to the subscription to " + subscription.topic
+                        + " within " + SUBSCRIBE_TIMEOUT_SECONDS + " seconds");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for subscription to " + subscription.topic);
+            }
+        }
+        return subscription;
+    }
+
+    // Guarded by this
+    private boolean isSubscribed(String key) {
+        for (Subscription existing : subscriptions) {
+            if (existing.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Drop every local subscription to a topic the server refused
+    private synchronized void remove(String key) {
+        List<Subscription> kept = new ArrayList<>();
+        for (Subscription existing : subscriptions) {
+            if (existing.key.equals(key)) {
+                existing.end();
+            } else {
+                kept.add(existing);
+            }
+        }
+        subscriptions = kept.toArray(NONE);
+    }
+
+    // Give up on a subscribe the server has not answered, so later ones stop
+    // queueing behind it; should the answer still come, the subscription it
+    // made is dropped again
+    private synchronized void abandon(PendingSubscribe request) throws IOException {
+        pending.remove(request);
+        remove(request.key);
+        if (!closed) {
+            writeFrame(MessageCodec.FRAME_UNSUBSCRIBE, request.key);
+        }
+    }
+
+    // Subscription.close(): the server subscription goes with the last local one
+    synchronized void unsubscribe(Subscription subscription) throws IOException {
+        Subscription[] current = subscriptions;
+        int index = Arrays.asList(current).indexOf(subscription);
+        if (index < 0) {
+            return;
+        }
+        Subscription[] updated = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        subscriptions = updated;
+        subscription.end();
+        if (!closed && !isSubscribed(subscription.key)) {
+            writeFrame(MessageCodec.FRAME_UNSUBSCRIBE, subscription.key);
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!closed && registered) {
+                try {
+                    MessageCodec.writeFrame(out, MessageCodec.FRAME_TERMINATE, 0, new byte[0]);
+                    out.flush();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+        shutDown("Connection is closed");
+    }
+
+    // Close the socket, end every subscription and fail waiting subscribes;
+    // called once by close() or by the reader when the server goes away
+    private void shutDown(String reason) {
+        Subscription[] ended;
+        synchronized (this) {
+            closed = true;
+            for (PendingSubscribe request : pending) {
+                request.answer.completeExceptionally(new IOException(reason));
+            }
+            pending.clear();
+            ended = subscriptions;
+            subscriptions = NONE;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        for (Subscription subscription : ended) {
+            subscription.end();
+        }
+    }
+
+    private void readLoop() {
+        String reason = "Server closed the connection";
+        try {
+            MessageCodec.Frame frame;
+            while ((frame = MessageCodec.readFrame(in)) != null) {
+                messageConsumed();
+                handleFrame(frame);
+            }
+        } catch (IOException e) {
+            reason = "Connection lost: " + e.getMessage();
+        } catch (InterruptedException e) {
+            reason = "Connection is closed";
+        }
+        shutDown(reason);
+    }
+
+    private void handleFrame(MessageCodec.Frame frame) throws InterruptedException {
+        switch (frame.type) {
+            case MessageCodec.FRAME_MESSAGE:
+                route(frame);
+                break;
+            case MessageCodec.FRAME_BIND:
+                // Answers a SUBSCRIBE, or names a concrete topic before its
+                // first message through a wildcard
+                String name = frame.payloadText();
+                topicNames.put(frame.topicId, name);
+                answer(name, null);
+                break;
+            case MessageCodec.FRAME_INFO:
+                String text = frame.payloadText();
+                if (text.startsWith("Invalid topic") || text.startsWith("Cannot replay")) {
+                    answer(null, text);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Complete the oldest waiting subscribe: with the BIND for its topic, or
+    // with the server's reason for refusing it
+    private synchronized void answer(String boundTopic, String refusal) {
+        PendingSubscribe request = pending.peek();
+        if (request == null) {
+            return;
+        }
+        if (refusal != null) {
+            pending.poll();
+            request.answer.completeExceptionally(new IOException(refusal));
+        } else if (request.pattern.equals(boundTopic)) {
+            pending.poll();
+            request.answer.complete(null);
+        }
+    }
+
+    private void route(MessageCodec.Frame frame) throws InterruptedException {
+        Subscription[] current = subscriptions;
+        if (current != routedFrom) {
+            routes.clear();
+            routedFrom = current;
+        }
+        Subscription[] targets = routes.get(frame.topicId);
+        String topic = topicNames.get(frame.topicId);
+        if (targets == null) {
+            if (topic == null) {
+                return;
+            }
+            List<Subscription> matched = new ArrayList<>();
+            for (Subscription subscription : current) {
+                if (TopicTrie.matches(subscription.pattern, topic)) {
+                    matched.add(subscription);
+                }
+            }
+            targets = matched.toArray(NONE);
+            routes.put(frame.topicId, targets);
+        }
+        if (targets.length == 0) {
+            return;
+        }
+        Message message = new Message(topic, frame.payload);
+        for (Subscription subscription : targets) {
+            try {
+                subscription.deliver(message);
+            } catch (RuntimeException e) {
+                System.err.println("Subscription handler for " + subscription.topic + " failed: " + e);
+            }
+        }
+    }
+
+    // Count one frame received; once half the window is used, grant it back
+    private void messageConsumed() throws IOException {
+        if (creditWindow <= 0) {
+            return;
+        }
+        consumedSinceGrant++;
+        if (consumedSinceGrant >= Math.max(1, creditWindow / 2)) {
+            writeCredit(consumedSinceGrant);
+            consumedSinceGrant = 0;
+        }
+    }
+
+    private synchronized void writeCredit(int n) throws IOException {
+        MessageCodec.writeFrame(out, MessageCodec.FRAME_CREDIT, 0, ByteBuffer.allocate(4).putInt(n).array());
+        out.flush();
+    }
+
+    // Guarded by this
+    private void writeFrame(byte type, String topic) throws IOException {
+        MessageCodec.writeFrame(out, type, 0, topic.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static final class PendingSubscribe {
+        // As the server's BIND names it, and as it lists the subscription
+        final String pattern;
+        final String key;
+        final CompletableFuture<Void> answer = new CompletableFuture<>();
+
+        PendingSubscribe(String pattern, String key) {
+            this.pattern = pattern;
+            this.key = key;
+        }
+    }
+
+    // One delivered message. Every subscription it matched gets the same
+    // instance, so the payload must not be modified.
+    public static final class Message {
+        public final String topic;
+        public final byte[] payload;
+
+        Message(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    // One local subscription: a topic or pattern and where its messages go
+    public static final class Subscription implements Closeable {
+        // Queued after the last message once the subscription has ended
+        private static final Message END = new Message(null, null);
+
+        private final ClientConnection connection;
+        // As requested; the topic or pattern it matches, without its FROM or
+        // GROUP clause, which the server's BIND names; and the server's key
+        // for it, which UNSUBSCRIBE takes
+        final String topic;
+        final String pattern;
+        final String key;
+        private final Consumer<Message> handler;
+        // Queue mode: messages for the application, and the free slots the
+        // reader waits for when the application falls behind
+        private final LinkedBlockingQueue<Message> queue;
+        private final Semaphore space;
+        private final int capacity;
+        private volatile boolean ended = false;
+
+        Subscription(ClientConnection connection, String topic, Consumer<Message> handler, int capacity) {
+            this.connection = connection;
+            this.topic = topic.trim();
+            // Parsed the way ClientHandler.subscribe() does
+            String subscription = this.topic;
+            String[] group = ConsumerGroups.parse(subscription);
+            if (group != null) {
+                subscription = group[0];
+            }
+            String[] from = ClientHandler.parseFrom(subscription);
+            this.pattern = from != null ? from[0] : subscription;
+            this.key = group != null ? ConsumerGroups.key(pattern, group[1]) : pattern;
+            this.handler = handler;
+            this.capacity = capacity;
+            this.queue = handler == null ? new LinkedBlockingQueue<>() : null;
+            this.space = handler == null ? new Semaphore(capacity) : null;
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        // Next message, waiting for one; null once the subscription is
+        // closed (or the connection lost) and its queue is drained
+        public Message take() throws InterruptedException {
+            return taken(queue().take());
+        }
+
+        // Next message, or null if none arrives in time or the subscription
+        // has ended
+        public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return taken(queue().poll(timeout, unit));
+        }
+
+        // False once closed or once the connection is gone
+        public boolean isActive() {
+            return !ended;
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.unsubscribe(this);
+        }
+
+        private LinkedBlockingQueue<Message> queue() {
+            if (queue == null) {
+                throw new IllegalStateException("Subscription to " + topic + " delivers to a handler");
+            }
+            return queue;
+        }
+
+        private Message taken(Message message) {
+            if (message == END) {
+                // Left in place for any later call
+                queue.add(END);
+                return null;
+            }
+            if (message != null) {
+                space.release();
+            }
+            return message;
+        }
+
+        // Reader thread
+        void deliver(Message message) throws InterruptedException {
+            if (ended) {
+                return;
+            }
+            if (handler != null) {
+                handler.accept(message);
+                return;
+            }
+            space.acquire();
+            synchronized (this) {
+                if (!ended) {
+                    queue.add(message);
+                }
+            }
+        }
+
+        // No more deliveries; wakes a reader waiting for queue space
+        synchronized void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            if (queue != null) {
+                space.release(capacity);
+                queue.add(END);
+            }
+        }
+    }
+}
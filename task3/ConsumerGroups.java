@@ -0,0 +1,173 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Shared subscriptions. "<topic> GROUP <name>" makes a subscriber one member
+// of a consumer group on that topic or pattern, and each matching message
+// goes to exactly one member instead of to all of them (--group-balance
+// picks which). Ungrouped subscribers of the topic still get every message
+// and each group gets one copy, so a group scales out a consumer without
+// changing what anyone else sees.
+//
+// Like TopicTrie, readers never lock: a group's members are a copy-on-write
+// array, and the groups matching a concrete topic are cached on its Topic
+// entry against a version that creating or removing a group bumps. A member
+// leaving only swaps the array, so delivery carries on with the others at
+// once, and a message whose chosen member turns out to be gone is offered
+// to the next one (see Server.deliverToGroups).
+public class ConsumerGroups {
+    private static final Pattern GROUP_CLAUSE = Pattern.compile("(.*\\S)\\s+GROUP\\s+(\\S+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final ConsumerGroup[] NONE = new ConsumerGroup[0];
+
+    // By key(); changes are serialized on this object
+    private final Map<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+    private volatile ConsumerGroup[] all = NONE;
+    private final AtomicLong version = new AtomicLong();
+
+    // Subscription and group name of a "<subscription> GROUP <name>"
+    // request, or null if it names no group
+    static String[] parse(String request) {
+        Matcher matcher = GROUP_CLAUSE.matcher(request.trim());
+        return matcher.matches() ? new String[] { matcher.group(1), matcher.group(2) } : null;
+    }
+
+    // How a membership is listed among a client's subscriptions
+    static String key(String subscription, String group) {
+        return subscription + " GROUP " + group;
+    }
+
+    // Groups whose subscription matches a concrete topic; never null, must
+    // not be modified
+    ConsumerGroup[] match(Topic topic) {
+        long current = version.get();
+        Topic.Groups cached = topic.groups;
+        if (cached != null && cached.version == current) {
+            return cached.groups;
+        }
+        List<ConsumerGroup> matched = new ArrayList<>();
+        for (ConsumerGroup group : all) {
+            if (TopicTrie.matches(group.subscription, topic.name)) {
+                matched.add(group);
+            }
+        }
+        ConsumerGroup[] groups = matched.isEmpty() ? NONE : matched.toArray(NONE);
+        topic.groups = new Topic.Groups(current, groups);
+        return groups;
+    }
+
+    // Returns the group's size after adding, or 0 if the client was
+    // already a member
+    synchronized int join(String subscription, String name, ClientHandler member) {
+        String key = key(subscription, name);
+        ConsumerGroup group = groups.get(key);
+        if (group == null) {
+            group = new ConsumerGroup(subscription, name);
+            groups.put(key, group);
+            all = groups.values().toArray(NONE);
+            version.incrementAndGet();
+        }
+        return group.add(member);
+    }
+
+    // Returns false if the client was not a member; the last member to
+    // leave removes the group
+    synchronized boolean leave(String subscription, String name, ClientHandler member) {
+        String key = key(subscription, name);
+        ConsumerGroup group = groups.get(key);
+        if (group == null || !group.remove(member)) {
+            return false;
+        }
+        if (group.members.length == 0) {
+            groups.remove(key);
+            all = groups.values().toArray(NONE);
+            version.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Current groups, for statistics
+    ConsumerGroup[] groups() {
+        return all;
+    }
+
+    synchronized void clear() {
+        groups.clear();
+        all = NONE;
+        version.incrementAndGet();
+    }
+}
+
+// One group's members and where its delivery has got to
+class ConsumerGroup {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    final String subscription;
+    final String name;
+    // Copy-on-write; changed under the ConsumerGroups lock
+    volatile ClientHandler[] members = EMPTY;
+    private final AtomicInteger next = new AtomicInteger();
+    final LongAdder delivered = new LongAdder();
+
+    ConsumerGroup(String subscription, String name) {
+        this.subscription = subscription;
+        this.name = name;
+    }
+
+    int add(ClientHandler member) {
+        for (ClientHandler existing : members) {
+            if (existing == member) {
+                return 0;
+            }
+        }
+        ClientHandler[] updated = Arrays.copyOf(members, members.length + 1);
+        updated[members.length] = member;
+        members = updated;
+        return updated.length;
+    }
+
+    boolean remove(ClientHandler member) {
+        ClientHandler[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) {
+                ClientHandler[] updated = new ClientHandler[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                members = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The member for the next message out of a non-empty snapshot. Round
+    // robin takes turns; least-queued takes the member with the shortest
+    // outbound queue, starting the scan where round robin would so that
+    // ties are shared out.
+    ClientHandler pick(ClientHandler[] members, ServerConfig.GroupBalance balance) {
+        int start = Math.floorMod(next.getAndIncrement(), members.length);
+        if (balance == ServerConfig.GroupBalance.ROUND_ROBIN) {
+            return members[start];
+        }
+        ClientHandler best = members[start];
+        int bestDepth = best.getQueueDepth();
+        for (int i = 1; i < members.length && bestDepth > 0; i++) {
+            ClientHandler candidate = members[(start + i) % members.length];
+            int depth = candidate.getQueueDepth();
+            if (depth < bestDepth) {
+                best = candidate;
+                bestDepth = depth;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return ConsumerGroups.key(subscription, name);
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Topic sharding (--dispatchers): each topic is hashed to one of a fixed set
+// of dispatcher threads, which does all of that topic's routing. Publisher
+// threads only enqueue, so a hot publisher costs its dispatcher's core rather
+// than its own connection's thread, and topics on different dispatchers are
+// routed in parallel.
+//
+// A dispatcher is the only thread appending to its topics' logs and
+// histories, and drains its queue in FIFO order, so every subscriber of a
+// topic sees the topic's messages in the same order, whichever connection
+// published them. The locks Server takes while routing are therefore never
+// contended by other publishers, only by a subscriber joining that topic.
+public class DispatcherGroup {
+    private final Dispatcher[] dispatchers;
+
+    public DispatcherGroup(Server server, int threads, int queueCapacity) {
+        dispatchers = new Dispatcher[threads];
+        for (int i = 0; i < threads; i++) {
+            dispatchers[i] = new Dispatcher(server, i, queueCapacity);
+        }
+        for (Dispatcher dispatcher : dispatchers) {
+            dispatcher.start();
+        }
+    }
+
+    // Hand a message to its topic's dispatcher, taking over the frame's
+    // reference. Never blocks: the message is always queued, and if that
+    // filled the queue the dispatcher is returned so the publisher can back
+    // off until it drains (see ClientHandler.backOff); otherwise null.
+    public Dispatcher submit(PooledBuffer frame, Publication from) {
+        // By name rather than id: a topic that dies and comes back under a
+        // new id stays on the same dispatcher, behind its earlier messages
+        Dispatcher dispatcher = dispatcher(from);
+        return dispatcher.submit(new Dispatcher.Task(frame, null, 0, from)) ? null : dispatcher;
+    }
+
+    // A batch of messages on one topic, frames[0, count), routed as one task
+    // and counted as one against --dispatch-queue. Takes over the references
+    // but not the array, which the caller may reuse. Returns as submit().
+    public Dispatcher submit(PooledBuffer[] frames, int count, Publication from) {
+        Dispatcher dispatcher = dispatcher(from);
+        return dispatcher.submitBatch(frames, count, from) ? null : dispatcher;
+    }
+
+    private Dispatcher dispatcher(Publication from) {
+        return dispatchers[Math.floorMod(from.topic.name.hashCode(), dispatchers.length)];
+    }
+
+    public int size() {
+        return dispatchers.length;
+    }
+
+    // Messages waiting across all dispatchers
+    public int queuedMessages() {
+        int queued = 0;
+        for (Dispatcher dispatcher : dispatchers) {
+            queued += dispatcher.queued();
+        }
+        return queued;
+    }
+
+    public void shutdown() {
+        for (Dispatcher dispatcher : dispatchers) {
+            dispatcher.shutdown();
+        }
+    }
+}
+
+// One dispatcher thread and its multi-producer, single-consumer queue. Like
+// the log writer, producers append to a lock-free queue and only unpark the
+// thread when it has parked on an empty one.
+//
+// The queue bound is enforced by the publishers rather than here: a submit
+// never waits, since it may be running on an event loop serving many other
+// connections. It reports the queue full instead, and the publisher stops
+// reading until whenDrained() says the queue is back down to half, so a
+// queue overshoots --dispatch-queue by at most one task per publisher.
+class Dispatcher implements Runnable {
+    // One message, or a batch of them in batch[0, count) (frame is then null)
+    static final class Task {
+        final PooledBuffer frame;
+        final PooledBuffer[] batch;
+        final int count;
+        final Publication from;
+
+        Task(PooledBuffer frame, PooledBuffer[] batch, int count, Publication from) {
+            this.frame = frame;
+            this.batch = batch;
+            this.count = count;
+            this.from = from;
+        }
+
+        void release() {
+            if (batch == null) {
+                frame.release();
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                batch[i].release();
+            }
+        }
+    }
+
+    // Batch arrays kept once routed, for later batches to be copied into;
+    // an ArrayBlockingQueue, so handing one back allocates no queue node
+    private static final int SPARE_BATCHES = 64;
+
+    private final Server server;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ArrayBlockingQueue<PooledBuffer[]> spareBatches = new ArrayBlockingQueue<>(SPARE_BATCHES);
+    // Publishers backing off from a full queue, run once it has drained
+    private final ConcurrentLinkedQueue<Runnable> drainWaiters = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean parked = false;
+    private volatile boolean running = true;
+
+    Dispatcher(Server server, int index, int capacity) {
+        this.server = server;
+        this.capacity = capacity;
+        this.thread = new Thread(this, "dispatcher-" + index);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Queue a task; returns false if the queue is now full, in which case
+    // the publisher should back off until whenDrained()
+    boolean submit(Task task) {
+        if (!running) {
+            task.release();
+            return true;
+        }
+        int queued = pending.incrementAndGet();
+        queue.add(task);
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+        return queued < capacity;
+    }
+
+    // A copy of frames[0, count) as one task, in a recycled array when there
+    // is one
+    boolean submitBatch(PooledBuffer[] frames, int count, Publication from) {
+        PooledBuffer[] batch = spareBatches.poll();
+        if (batch == null || batch.length < count) {
+            batch = new PooledBuffer[Math.max(count, ClientHandler.MAX_BATCH)];
+        }
+        System.arraycopy(frames, 0, batch, 0, count);
+        return submit(new Task(null, batch, count, from));
+    }
+
+    // Publishers that backed off go on once the queue is down to half, so
+    // reads resume well before the dispatcher runs dry
+    private boolean hasRoom() {
+        return pending.get() <= capacity / 2 || !running;
+    }
+
+    // Run resume once hasRoom(), on the dispatcher thread, or right here if
+    // it already has. It must not block.
+    void whenDrained(Runnable resume) {
+        drainWaiters.add(resume);
+        // The dispatcher may have checked for waiters just before this one
+        // was added
+        if (hasRoom()) {
+            runDrainWaiters();
+        }
+    }
+
+    private void runDrainWaiters() {
+        Runnable resume;
+        while ((resume = drainWaiters.poll()) != null) {
+            try {
+                resume.run();
+            } catch (RuntimeException e) {
+                Log.error("Error resuming a publisher: " + e);
+            }
+        }
+    }
+
+    int queued() {
+        return pending.get();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Task task;
+            while ((task = queue.poll()) != null) {
+                pending.decrementAndGet();
+                try {
+                    if (task.batch == null) {
+                        server.route(task.frame, task.from);
+                    } else {
+                        server.route(task.batch, task.count, task.from);
+                    }
+                } catch (RuntimeException e) {
+                    Log.error("Error routing message on topic '" + task.from.topic + "': " + e);
+                }
+                if (task.batch != null) {
+                    Arrays.fill(task.batch, 0, task.count, null);
+                    spareBatches.offer(task.batch);
+                }
+                if (!drainWaiters.isEmpty() && hasRoom()) {
+                    runDrainWaiters();
+                }
+            }
+
+            // Re-check after setting the flag, so a message added just
+            // before it was set is not left waiting
+            parked = true;
+            if (queue.isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            parked = false;
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+        runDrainWaiters();
+    }
+}
@@ -0,0 +1,483 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed set of Selector event loops for the server's nio mode. The first loop
+// also owns the listening channel and hands accepted connections to the loops
+// round-robin, so the thread count stays constant regardless of client count.
+public class EventLoopGroup {
+    private final Server server;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    // --unix-socket listener, on the same acceptor loop; null if none
+    private ServerSocketChannel unixChannel;
+
+    public EventLoopGroup(Server server, int threads) throws IOException {
+        this.server = server;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(this, "event-loop-" + i, server.getConfig().getFlushBytes());
+        }
+    }
+
+    // unixSocketPath, if not null, is a second listener (--unix-socket) on
+    // the same acceptor loop
+    public void bind(int port, Path unixSocketPath) throws IOException {
+        if (unixSocketPath != null) {
+            unixChannel = UnixSocket.bind(unixSocketPath);
+            unixChannel.configureBlocking(false);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        loops[0].registerAcceptor(serverChannel);
+        if (unixChannel != null) {
+            loops[0].registerAcceptor(unixChannel);
+        }
+    }
+
+    // Called on the acceptor loop whenever the listening channel is ready
+    void acceptConnections(ServerSocketChannel channel) {
+        try {
+            SocketChannel clientChannel;
+            while ((clientChannel = channel.accept()) != null) {
+                server.configureChannel(clientChannel);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                NioClientHandler clientHandler = new NioClientHandler(clientChannel, server, loop);
+                server.addClient(clientHandler);
+                loop.register(clientHandler);
+            }
+        } catch (IOException e) {
+            Log.error("Error accepting client connection: " + e.getMessage());
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.join();
+        }
+    }
+
+    public void shutdown() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (unixChannel != null) {
+                unixChannel.close();
+            }
+        } catch (IOException e) {
+            Log.error("Error closing server channel: " + e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
+
+// A single Selector thread. Other threads hand it work through execute(), which
+// wakes the selector so the task runs on the loop thread.
+class EventLoop implements Runnable {
+    private final EventLoopGroup group;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Delayed tasks ordered by deadline; only touched on the loop thread
+    private final PriorityQueue<ScheduledTask> timers = new PriorityQueue<>();
+    // Direct buffer each flush on this loop copies its frames into for the
+    // write; only touched on the loop thread
+    private final ByteBuffer writeBuffer;
+    private volatile boolean running = true;
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        final long deadline;
+        final Runnable task;
+
+        ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    EventLoop(EventLoopGroup group, String name, int writeBufferBytes) throws IOException {
+        this.group = group;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.writeBuffer = ByteBuffer.allocateDirect(writeBufferBytes);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void join() throws InterruptedException {
+        thread.join();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    ByteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // Run a task on the loop after a delay. Selector timeouts are in
+    // milliseconds, so sub-millisecond delays round up to one.
+    void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new ScheduledTask(deadline, task)));
+    }
+
+    void registerAcceptor(ServerSocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                Log.error("Server channel closed before accepting: " + e.getMessage());
+            }
+        });
+    }
+
+    void register(NioClientHandler clientHandler) {
+        execute(() -> clientHandler.register(selector));
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Tasks queued from the loop thread itself don't wake the selector
+                if (tasks.isEmpty()) {
+                    selector.select(selectTimeoutMillis());
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        group.acceptConnections((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+
+                    NioClientHandler clientHandler = (NioClientHandler) key.attachment();
+                    if (key.isReadable()) {
+                        clientHandler.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        clientHandler.onWritable();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    // 0 blocks until woken, as there is nothing scheduled
+    private long selectTimeoutMillis() {
+        ScheduledTask next = timers.peek();
+        if (next == null) {
+            return 0;
+        }
+        long remaining = next.deadline - System.nanoTime();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+        while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+            timers.poll();
+            next.task.run();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
+
+// ClientHandler driven by an EventLoop instead of a dedicated thread. Reads land
+// in the shared input buffer and go through the same decoding and routing as
+// the blocking handler; the outbound queue is flushed by the owning loop.
+class NioClientHandler extends ClientHandler {
+    // Frames taken from the queue per write
+    private static final int MAX_GATHER = 256;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Runnable flushTask = this::flush;
+    private SelectionKey key;
+    // Frames taken from the outbound queue but not fully written yet, each
+    // holding its reference; pendingOffset bytes of the first are written
+    private final PooledBuffer[] pending = new PooledBuffer[MAX_GATHER];
+    private int pendingStart;
+    private int pendingEnd;
+    private int pendingOffset;
+    private long pendingBytes;
+    private final int flushBytes;
+    private final long flushDelayNanos;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Set while reading is off for a full dispatcher queue; loop thread only
+    private boolean readPaused;
+
+    NioClientHandler(SocketChannel channel, Server server, EventLoop loop) {
+        super(server, describe(channel));
+        this.channel = channel;
+        this.loop = loop;
+        this.flushBytes = server.getConfig().getFlushBytes();
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(server.getConfig().getFlushDelayMicros());
+    }
+
+    private static String describe(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            if (!(address instanceof InetSocketAddress)) {
+                return UnixSocket.describe(channel);
+            }
+            InetSocketAddress remote = (InetSocketAddress) address;
+            return remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    // Runs on the owning loop
+    void register(Selector selector) {
+        try {
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            onConnected();
+        } catch (IOException e) {
+            Log.error("Error setting up client handler: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    // Runs on the owning loop
+    void onReadable() {
+        try {
+            int read = channel.read(inputBuffer);
+            if (read < 0 || !processInput()) {
+                disconnect();
+            }
+        } catch (IOException e) {
+            Log.error("Error handling client " + clientInfo + ": " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    // The loop serves other connections, so rather than wait for the
+    // dispatcher it stops reading from this one until the dispatcher has
+    // drained; the input already read waits in the buffer
+    @Override
+    protected boolean backOff(Dispatcher dispatcher) {
+        readPaused = true;
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            return false;
+        }
+        dispatcher.whenDrained(() -> loop.execute(this::resumeReading));
+        return false;
+    }
+
+    // Runs on the owning loop: process what was left buffered, then read
+    // again unless that filled the dispatcher's queue once more
+    private void resumeReading() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        readPaused = false;
+        try {
+            if (!processInput()) {
+                disconnect();
+            } else if (!readPaused) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (CancelledKeyException e) {
+            disconnect();
+        }
+    }
+
+    // One flush per loop pass picks up everything enqueued before it runs;
+    // with a flush delay it is held back so more messages can join the write
+    @Override
+    protected void onEnqueued() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (flushDelayNanos > 0) {
+            loop.schedule(flushTask, flushDelayNanos);
+        } else {
+            loop.execute(flushTask);
+        }
+    }
+
+    // May be called mid-broadcast on any thread, so the topic maps are cleaned
+    // up by a task on the owning loop once the broadcast has finished
+    @Override
+    protected void abort() {
+        connected = false;
+        loop.execute(this::disconnect);
+    }
+
+    // Runs on the owning loop. Queued frames are copied into the loop's
+    // direct write buffer, up to --flush-bytes, and written with one call;
+    // if the socket would block, OP_WRITE resumes from the first unwritten
+    // byte. A frame is released once all of it has been written.
+    void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            // Still waiting for the socket to drain; onWritable() resumes
+            return;
+        }
+        int messages = 0;
+        int writeCalls = 0;
+        try {
+            while (true) {
+                PooledBuffer frame;
+                while (pendingEnd < pending.length && pendingBytes < flushBytes
+                        && (frame = pollWithCredit()) != null) {
+                    pending[pendingEnd++] = frame;
+                    pendingBytes += frame.length();
+                }
+                if (pendingStart == pendingEnd) {
+                    if (isClosing() && getQueueDepth() == 0) {
+                        disconnect();
+                        return;
+                    }
+                    break;
+                }
+
+                ByteBuffer out = loop.writeBuffer();
+                out.clear();
+                int offset = pendingOffset;
+                for (int i = pendingStart; i < pendingEnd && out.hasRemaining(); i++) {
+                    int chunk = Math.min(pending[i].length() - offset, out.remaining());
+                    out.put(out.position(), pending[i].buffer(), offset, chunk);
+                    out.position(out.position() + chunk);
+                    offset = 0;
+                }
+                out.flip();
+                int written = 0;
+                if (out.hasRemaining()) {
+                    written = channel.write(out);
+                    writeCalls++;
+                }
+                messages += advance(written);
+                if (out.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException | CancelledKeyException e) {
+            disconnect();
+        } finally {
+            server.recordWrites(messages, writeCalls);
+        }
+    }
+
+    // Move past written bytes, releasing the frames now fully written;
+    // returns how many that was
+    private int advance(int written) {
+        int completed = 0;
+        pendingBytes -= written;
+        while (pendingStart < pendingEnd) {
+            int left = pending[pendingStart].length() - pendingOffset;
+            if (left > written) {
+                pendingOffset += written;
+                break;
+            }
+            written -= left;
+            pending[pendingStart].release();
+            pending[pendingStart++] = null;
+            pendingOffset = 0;
+            completed++;
+        }
+        if (pendingStart == pendingEnd) {
+            pendingStart = 0;
+            pendingEnd = 0;
+        }
+        return completed;
+    }
+
+    // Runs on the owning loop
+    void onWritable() {
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flush();
+        } catch (CancelledKeyException e) {
+            disconnect();
+        }
+    }
+
+    @Override
+    protected void closeConnection() {
+        // Frames part-written belong to the loop's flush, so only it may
+        // release them; elsewhere they are left to the GC
+        if (loop.inEventLoop()) {
+            while (pendingStart < pendingEnd) {
+                pending[pendingStart].release();
+                pending[pendingStart++] = null;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("Error disconnecting client " + clientInfo + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+// Latency histogram in the style of HdrHistogram: values are counted in
+// buckets that are linear within each power of two, so every recorded value
+// keeps two significant digits (under 1% error) from nanoseconds to an hour
+// in a fixed ~40 KB array, and recording is an index computation and an
+// increment. Values above the trackable range land in the last bucket; the
+// exact maximum is kept separately.
+//
+// Not thread-safe: each recording thread keeps its own histogram and they
+// are merged with add() once recording has stopped.
+class LatencyHistogram {
+    // 2^SUB_BUCKET_BITS linear sub-buckets per power of two; the upper half
+    // of them is used by every bucket after the first
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // About an hour in nanoseconds
+    private static final long HIGHEST_TRACKABLE = (1L << 42) - 1;
+
+    private final long[] counts = new long[indexOf(HIGHEST_TRACKABLE) + 1];
+    private long totalCount = 0;
+    private long max = 0;
+    private double sum = 0;
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int bucket = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return bucket * SUB_BUCKET_HALF + (int) (value >>> bucket);
+    }
+
+    // Largest value that falls in the same bucket slot as index
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = index / SUB_BUCKET_HALF - 1;
+        long lowest = (long) (index - bucket * SUB_BUCKET_HALF) << bucket;
+        return lowest + (1L << bucket) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(Math.min(value, HIGHEST_TRACKABLE))]++;
+        totalCount++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    // Smallest recorded value (to bucket precision) that the given percentage
+    // of values are at or below
+    public long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+}
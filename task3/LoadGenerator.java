@@ -0,0 +1,527 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator behind "java Client <host> <port> LOAD [options]".
+// Opens M publishers and N subscribers spread round-robin over K topics in
+// one JVM, publishes for a fixed time, and reports throughput and end-to-end
+// latency percentiles.
+//
+// Each message carries its publisher, sequence number and send time (this
+// JVM's nanoTime, which every subscriber shares). Open-loop runs publish on
+// a fixed schedule whatever the server does and stamp each message with its
+// scheduled time, so a stalled server shows up as latency instead of quietly
+// lowering the offered load. Closed-loop runs keep at most --window messages
+// per publisher in flight: the next one goes out once every subscriber of
+// the topic has received the one --window messages back.
+public class LoadGenerator {
+    // Give up on a message in closed-loop mode after this long (it was
+    // probably dropped by the server's overflow policy) and move on
+    private static final long CLOSED_LOOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // End of run: stop waiting for stragglers once nothing arrived for this long
+    private static final long DRAIN_QUIET_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long DRAIN_MAX_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final String host;
+    private final int port;
+    private int publishers = 1;
+    private int subscribers = 1;
+    private int topics = 1;
+    private String topicPrefix = "LOAD";
+    private boolean closedLoop = false;
+    private long rate = 0;
+    private int window = 1;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private int payloadBytes = 64;
+    private boolean binary = false;
+
+    private final List<LoadPublisher> publisherList = new ArrayList<>();
+    private final List<LoadSubscriber> subscriberList = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicLong received = new AtomicLong();
+    // Subscribers the server hung up on mid-run (e.g. as too slow)
+    private final AtomicLong lostSubscribers = new AtomicLong();
+    private volatile boolean running = true;
+    // Messages sent before this are not measured
+    private long measureFromNanos;
+
+    LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Parse options starting at args[from], in the server's --name=value
+    // style; throws IllegalArgumentException on anything unrecognised
+    void parse(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if ("--binary".equals(arg)) {
+                binary = true;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "publishers":
+                    publishers = parsePositiveInt(name, value);
+                    break;
+                case "subscribers":
+                    subscribers = parseNonNegativeInt(name, value);
+                    break;
+                case "topics":
+                    topics = parsePositiveInt(name, value);
+                    break;
+                case "topic-prefix":
+                    if (value.trim().isEmpty() || TopicTrie.isPattern(value)) {
+                        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                    }
+                    topicPrefix = value.trim().toUpperCase();
+                    break;
+                case "mode":
+                    if (!"open".equalsIgnoreCase(value) && !"closed".equalsIgnoreCase(value)) {
+                        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value
+                                + " (expected open or closed)");
+                    }
+                    closedLoop = "closed".equalsIgnoreCase(value);
+                    break;
+                case "rate":
+                    rate = parseNonNegativeInt(name, value);
+                    break;
+                case "window":
+                    window = parsePositiveInt(name, value);
+                    break;
+                case "duration":
+                    durationSeconds = parsePositiveInt(name, value);
+                    break;
+                case "warmup":
+                    warmupSeconds = parseNonNegativeInt(name, value);
+                    break;
+                case "payload":
+                    payloadBytes = parsePositiveInt(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        if (!closedLoop && rate == 0) {
+            throw new IllegalArgumentException("Open-loop mode needs --rate=<messages per second>");
+        }
+    }
+
+    private static int parsePositiveInt(String name, String value) {
+        int parsed = parseNonNegativeInt(name, value);
+        if (parsed == 0) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+        return parsed;
+    }
+
+    private static int parseNonNegativeInt(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+    }
+
+    static void printOptions() {
+        System.err.println("Load generator options:");
+        System.err.println("  --publishers=<m>        publisher connections (default 1)");
+        System.err.println("  --subscribers=<n>       subscriber connections (default 1)");
+        System.err.println("  --topics=<k>            topics, assigned round-robin (default 1)");
+        System.err.println("  --topic-prefix=<name>   topics are <name>.0 .. <name>.<k-1> (default LOAD)");
+        System.err.println("  --mode=open|closed      fixed-rate schedule, or a window in flight (default open)");
+        System.err.println("  --rate=<msgs/s>         total publish rate; required for open loop, a cap for closed");
+        System.err.println("  --window=<w>            closed loop: messages in flight per publisher (default 1)");
+        System.err.println("  --duration=<seconds>    measured time (default 10)");
+        System.err.println("  --warmup=<seconds>      unmeasured time before it (default 2)");
+        System.err.println("  --payload=<bytes>       message size (default 64)");
+        System.err.println("  --binary                use binary frames instead of text lines");
+    }
+
+    private String topic(int index) {
+        return topicPrefix + "." + (index % topics);
+    }
+
+    void run() throws IOException, InterruptedException {
+        try {
+            // Subscribers first, so no publisher sends before they are registered
+            for (int i = 0; i < subscribers; i++) {
+                subscriberList.add(new LoadSubscriber(topic(i)));
+            }
+            for (int i = 0; i < publishers; i++) {
+                LoadPublisher publisher = new LoadPublisher(i, topic(i));
+                for (int j = 0; j < subscribers; j++) {
+                    if (topic(j).equals(publisher.topic)) {
+                        publisher.receiversPerMessage++;
+                    }
+                }
+                publisherList.add(publisher);
+            }
+            System.out.println("Connected " + publishers + " publishers and " + subscribers + " subscribers on "
+                    + topics + " topics (" + (binary ? "binary" : "text") + ")");
+
+            for (LoadSubscriber subscriber : subscriberList) {
+                subscriber.thread.start();
+            }
+            long start = System.nanoTime();
+            measureFromNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+            for (LoadPublisher publisher : publisherList) {
+                publisher.start(start, endNanos);
+            }
+            System.out.println("Publishing for " + warmupSeconds + " s warmup + " + durationSeconds + " s ("
+                    + describeMode() + ")...");
+            for (LoadPublisher publisher : publisherList) {
+                publisher.thread.join();
+            }
+            drain();
+            report();
+        } finally {
+            running = false;
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    private String describeMode() {
+        if (closedLoop) {
+            return "closed loop, window " + window + (rate > 0 ? ", at most " + rate + " msg/s" : "");
+        }
+        return "open loop at " + rate + " msg/s";
+    }
+
+    // Wait for messages still in flight, until the count stops moving
+    private void drain() {
+        long deadline = System.nanoTime() + DRAIN_MAX_NANOS;
+        long last = -1;
+        long lastChange = System.nanoTime();
+        while (System.nanoTime() < deadline && received.get() < expectedMessages()) {
+            long now = received.get();
+            if (now != last) {
+                last = now;
+                lastChange = System.nanoTime();
+            } else if (System.nanoTime() - lastChange > DRAIN_QUIET_NANOS) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    // Deliveries owed for everything sent, measured or not
+    private long expectedMessages() {
+        long expected = 0;
+        for (LoadPublisher publisher : publisherList) {
+            expected += publisher.sent * publisher.receiversPerMessage;
+        }
+        return expected;
+    }
+
+    private void report() {
+        long measuredSent = 0;
+        long measuredExpected = 0;
+        for (LoadPublisher publisher : publisherList) {
+            measuredSent += publisher.measuredSent;
+            measuredExpected += publisher.measuredSent * publisher.receiversPerMessage;
+        }
+        running = false;
+        LatencyHistogram latency = new LatencyHistogram();
+        for (LoadSubscriber subscriber : subscriberList) {
+            synchronized (subscriber.histogram) {
+                latency.add(subscriber.histogram);
+            }
+        }
+        long measuredReceived = latency.getTotalCount();
+
+        System.out.println("=== LOAD TEST RESULTS ===");
+        System.out.println("Publishers: " + publishers + ", subscribers: " + subscribers + ", topics: " + topics
+                + ", payload: " + payloadBytes + " bytes, " + describeMode());
+        System.out.printf("Sent: %d messages (%.1f msg/s)%n", measuredSent, (double) measuredSent / durationSeconds);
+        System.out.printf("Received: %d of %d expected (%.1f msg/s), %d missing%n", measuredReceived,
+                measuredExpected, (double) measuredReceived / durationSeconds,
+                Math.max(0, measuredExpected - measuredReceived));
+        if (lostSubscribers.get() > 0) {
+            System.out.println("Disconnected by the server: " + lostSubscribers.get() + " of " + subscribers
+                    + " subscribers");
+        }
+        System.out.printf("Latency (us): p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f, mean %.1f%n",
+                micros(latency.valueAtPercentile(50)), micros(latency.valueAtPercentile(99)),
+                micros(latency.valueAtPercentile(99.9)), micros(latency.getMax()), latency.getMean() / 1000.0);
+        System.out.println("=========================");
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = Client.openSocket(host, port);
+        socket.setTcpNoDelay(true);
+        sockets.add(socket);
+        return socket;
+    }
+
+    // Register over the text or binary handshake; returns the binary topic id
+    // (0 in text mode) once the server has accepted the registration
+    private int handshake(Socket socket, String type, String topic, DataInputStream in, BufferedReader reader)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        if (!binary) {
+            out.write((type + "\n" + topic + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if ("SUBSCRIBER".equals(type)) {
+                String line;
+                while ((line = reader.readLine()) != null && !line.startsWith("Welcome!")) {
+                    // Skip anything ahead of the welcome
+                }
+                if (line == null) {
+                    throw new EOFException("Server closed the connection during the handshake");
+                }
+            }
+            return 0;
+        }
+        out.write((MessageCodec.BINARY_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+        DataOutputStream frames = new DataOutputStream(out);
+        byte frameType = "PUBLISHER".equals(type) ? MessageCodec.FRAME_PUBLISHER : MessageCodec.FRAME_SUBSCRIBER;
+        MessageCodec.writeFrame(frames, frameType, 0, topic.getBytes(StandardCharsets.UTF_8));
+        frames.flush();
+        MessageCodec.Frame frame = MessageCodec.readFrame(in);
+        if (frame == null || frame.type != MessageCodec.FRAME_BIND) {
+            throw new IOException("Server did not accept registration for topic " + topic);
+        }
+        return frame.topicId;
+    }
+
+    // Message text: "<publisher> <sequence> <sendNanos> xxx..." padded to the
+    // payload size; no newline, so it is valid in either protocol
+    private byte[] encodePayload(int publisher, long sequence, long sendNanos) {
+        String header = publisher + " " + sequence + " " + sendNanos + " ";
+        byte[] payload = new byte[Math.max(payloadBytes, header.length())];
+        byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(headerBytes, 0, payload, 0, headerBytes.length);
+        for (int i = headerBytes.length; i < payload.length; i++) {
+            payload[i] = 'x';
+        }
+        return payload;
+    }
+
+    private final class LoadPublisher {
+        final int index;
+        final String topic;
+        final Thread thread;
+        final OutputStream out;
+        final DataOutputStream frames;
+        final int topicId;
+        int receiversPerMessage = 0;
+        // Deliveries of this publisher's messages, counted by the subscribers
+        final AtomicLong delivered = new AtomicLong();
+        // Closed loop: the delivery count the publisher is parked waiting for
+        volatile long awaited = Long.MAX_VALUE;
+        // Written by the publisher thread, read after it is joined
+        long sent = 0;
+        long measuredSent = 0;
+        private long startNanos;
+        private long endNanos;
+
+        LoadPublisher(int index, String topic) throws IOException {
+            this.index = index;
+            this.topic = topic;
+            Socket socket = connect();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.topicId = handshake(socket, "PUBLISHER", topic, in, null);
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.frames = new DataOutputStream(out);
+            this.thread = new Thread(this::publishLoop, "load-publisher-" + index);
+        }
+
+        void start(long startNanos, long endNanos) {
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            thread.start();
+        }
+
+        private void publishLoop() {
+            // This publisher's share of the total rate
+            long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(publishers) / rate : 0;
+            // Deliveries written off as lost in closed-loop mode
+            long missing = 0;
+            try {
+                while (running) {
+                    long scheduled = startNanos + sent * intervalNanos;
+                    if (scheduled >= endNanos) {
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    if (now >= endNanos) {
+                        break;
+                    }
+                    if (scheduled > now) {
+                        LockSupport.parkNanos(scheduled - now);
+                        continue;
+                    }
+                    if (closedLoop && sent >= window && receiversPerMessage > 0) {
+                        long target = (sent - window + 1) * receiversPerMessage - missing;
+                        missing += awaitDeliveries(target);
+                        now = System.nanoTime();
+                        if (now >= endNanos) {
+                            break;
+                        }
+                    }
+                    // Open loop measures from the schedule, so falling behind
+                    // counts against the latency
+                    long sendNanos = closedLoop || intervalNanos == 0 ? now : scheduled;
+                    send(encodePayload(index, sent, sendNanos));
+                    if (sendNanos >= measureFromNanos) {
+                        measuredSent++;
+                    }
+                    sent++;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Publisher " + index + " failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // Park until the subscribers have counted target deliveries; returns
+        // how many never arrived if it times out
+        private long awaitDeliveries(long target) {
+            awaited = target;
+            long deadline = System.nanoTime() + CLOSED_LOOP_TIMEOUT_NANOS;
+            try {
+                while (running && delivered.get() < target) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return target - delivered.get();
+                    }
+                    LockSupport.parkNanos(remaining);
+                }
+                return 0;
+            } finally {
+                awaited = Long.MAX_VALUE;
+            }
+        }
+
+        // Called by subscriber threads
+        void onDelivered() {
+            if (delivered.incrementAndGet() >= awaited) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void send(byte[] payload) throws IOException {
+            if (binary) {
+                MessageCodec.writeFrame(frames, MessageCodec.FRAME_MESSAGE, topicId, payload);
+                frames.flush();
+            } else {
+                out.write(payload);
+                out.write('\n');
+                out.flush();
+            }
+        }
+    }
+
+    private final class LoadSubscriber {
+        final Thread thread;
+        final DataInputStream in;
+        final BufferedReader reader;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        LoadSubscriber(String topic) throws IOException {
+            Socket socket = connect();
+            if (binary) {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                reader = null;
+            } else {
+                in = null;
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            }
+            handshake(socket, "SUBSCRIBER", topic, in, reader);
+            thread = new Thread(this::receiveLoop, "load-subscriber-" + topic);
+            thread.setDaemon(true);
+        }
+
+        private void receiveLoop() {
+            try {
+                while (running) {
+                    if (binary) {
+                        MessageCodec.Frame frame = MessageCodec.readFrame(in);
+                        if (frame == null) {
+                            break;
+                        }
+                        if (frame.type == MessageCodec.FRAME_MESSAGE) {
+                            onMessage(new String(frame.payload, StandardCharsets.US_ASCII), 0);
+                        }
+                    } else {
+                        String line = reader.readLine();
+                        if (line == null) {
+                            break;
+                        }
+                        // "[TOPIC:t] [PUBLISHER host:port]: <payload>"; the
+                        // padding never contains "]: "
+                        int start = line.startsWith("[TOPIC:") ? line.lastIndexOf("]: ") : -1;
+                        if (start >= 0) {
+                            onMessage(line, start + 3);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Subscriber failed: " + e.getMessage());
+                }
+            }
+            if (running) {
+                lostSubscribers.incrementAndGet();
+            }
+        }
+
+        private void onMessage(String text, int start) {
+            long now = System.nanoTime();
+            int first = text.indexOf(' ', start);
+            int second = text.indexOf(' ', first + 1);
+            int third = text.indexOf(' ', second + 1);
+            if (first < 0 || second < 0 || third < 0) {
+                return;
+            }
+            int publisher;
+            long sendNanos;
+            try {
+                publisher = Integer.parseInt(text.substring(start, first));
+                sendNanos = Long.parseLong(text.substring(second + 1, third));
+            } catch (NumberFormatException e) {
+                // Not one of ours: someone else publishing on the topic
+                return;
+            }
+            if (publisher >= publisherList.size()) {
+                return;
+            }
+            if (sendNanos >= measureFromNanos) {
+                // Uncontended; only report() takes it from another thread
+                synchronized (histogram) {
+                    histogram.record(now - sendNanos);
+                }
+            }
+            received.incrementAndGet();
+            publisherList.get(publisher).onDelivered();
+        }
+    }
+}
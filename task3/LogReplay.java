@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+
+// Catches one subscriber up on a topic from a log offset, then hands it over
+// to live delivery without a gap or a duplicate.
+//
+// While the replay runs, broadcasts skip this subscriber for the topic
+// (ClientHandler.isReplaying). Every broadcast appends to the log before
+// fanning out, both under the TopicLog lock, so any message skipped that way
+// is already in the log for the replay to read. The replay reads and queues
+// without the lock, waiting for room in the subscriber's queue, until it is
+// close to the end; it then takes the lock, queues the remainder and clears
+// the replaying flag in one step, so the next broadcast goes to it live.
+class LogReplay implements Runnable {
+    // Records read per unlocked pass
+    private static final int BATCH = 256;
+
+    private final Server server;
+    private final ClientHandler subscriber;
+    private final TopicLog log;
+    private long next;
+
+    LogReplay(Server server, ClientHandler subscriber, TopicLog log, long from) {
+        this.server = server;
+        this.subscriber = subscriber;
+        this.log = log;
+        this.next = from;
+    }
+
+    @Override
+    public void run() {
+        String topic = log.getTopic();
+        long start = next;
+        try {
+            while (subscriber.isReplaying(topic) && subscriber.isConnected()) {
+                if (log.nextOffset() - next > subscriber.getQueueRoom()) {
+                    next = log.read(next, BATCH, this::deliverBlocking);
+                    continue;
+                }
+                synchronized (log) {
+                    if (log.nextOffset() - next <= subscriber.getQueueRoom()) {
+                        next = log.read(next, Integer.MAX_VALUE, this::deliver);
+                        subscriber.replayFinished(topic);
+                    }
+                }
+            }
+            if (Log.isDebugEnabled()) {
+                Log.debug("Replayed topic '" + topic + "' offsets " + start + ".." + next + " to "
+                        + subscriber.getClientInfo());
+            }
+        } catch (RuntimeException e) {
+            Log.error("Replay of topic '" + topic + "' to " + subscriber.getClientInfo() + " failed: " + e);
+            subscriber.replayFinished(topic);
+        }
+    }
+
+    private boolean deliverBlocking(long offset, String publisherInfo, byte[] payload) {
+        try {
+            return subscriber.isReplaying(log.getTopic())
+                    && subscriber.deliverBlocking(encode(publisherInfo, payload));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Only used under the lock, once the queue is known to have room
+    private boolean deliver(long offset, String publisherInfo, byte[] payload) {
+        return subscriber.sendEncoded(encode(publisherInfo, payload));
+    }
+
+    private ByteBuffer encode(String publisherInfo, byte[] payload) {
+        return server.encodeMessage(subscriber, log.getTopic(), publisherInfo, payload);
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+// The --persist-dir directory: one TopicLog per topic, in a subdirectory
+// named after the (URL-encoded) topic. A single background thread forces
+// dirty segments to disk every --persist-flush-ms, or sooner when a topic
+// reaches --persist-flush-messages, so publishers never wait on the disk.
+public class LogStore {
+    private final File root;
+    private final ServerConfig config;
+    private final ConcurrentHashMap<String, TopicLog> logs = new ConcurrentHashMap<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public LogStore(ServerConfig config) throws IOException {
+        this.config = config;
+        this.root = new File(config.getPersistDir());
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create persistence directory " + root);
+        }
+
+        // Reopen every topic logged before, so FROM works before anyone
+        // publishes to it again
+        File[] topics = root.listFiles(File::isDirectory);
+        if (topics != null) {
+            for (File directory : topics) {
+                String topic = URLDecoder.decode(directory.getName(), StandardCharsets.UTF_8.name());
+                logs.put(topic, new TopicLog(topic, directory, config, this::requestFlush));
+            }
+        }
+
+        if (config.getPersistFlushMillis() > 0 || config.getPersistFlushMessages() > 0) {
+            flusher = new Thread(this::flushLoop, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+        Log.info("Persisting topics under " + root.getAbsolutePath() + " (" + logs.size() + " existing)");
+    }
+
+    // The topic's log, created on first use
+    public TopicLog log(String topic) throws IOException {
+        TopicLog log = logs.get(topic);
+        if (log != null) {
+            return log;
+        }
+        try {
+            return logs.computeIfAbsent(topic, t -> {
+                try {
+                    File directory = new File(root, URLEncoder.encode(t, StandardCharsets.UTF_8.name()));
+                    return new TopicLog(t, directory, config, this::requestFlush);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The topic's log if anything was ever published to it, otherwise null
+    public TopicLog existing(String topic) {
+        return logs.get(topic);
+    }
+
+    // Ask the flusher to run now instead of at its next interval
+    void requestFlush() {
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    private void flushLoop() {
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getPersistFlushMillis());
+        while (running) {
+            if (intervalNanos > 0) {
+                LockSupport.parkNanos(intervalNanos);
+            } else {
+                LockSupport.park();
+            }
+            flushAll();
+        }
+    }
+
+    private void flushAll() {
+        for (TopicLog log : logs.values()) {
+            try {
+                log.flush();
+            } catch (UncheckedIOException e) {
+                Log.error("Error flushing log for topic '" + log.getTopic() + "': " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        for (TopicLog log : logs.values()) {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Wire encoding for both protocols. An encoded frame is shared by every
+// subscriber it goes to, so writers must treat it as read-only: read it
+// with absolute gets, never change its position.
+//
+// Text protocol: newline-terminated UTF-8 lines (the original protocol).
+// Binary protocol: the client sends the line "BINARY" instead of
+// PUBLISHER/SUBSCRIBER, then both sides exchange frames of
+//   [type:1][flags:1][topicId:4][length:4][payload:length]
+// with big-endian integers. Payloads are opaque bytes.
+public final class MessageCodec {
+    public static final String BINARY_HANDSHAKE = "BINARY";
+    // Text handshake type of a publisher that may also send
+    // "PUBLISH <topic> <message>" lines; see ClientHandler.handleLine()
+    public static final String MULTI_HANDSHAKE = "MULTI";
+
+    public static final int HEADER_LENGTH = 10;
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    // client -> server: register as publisher, payload is the topic name
+    public static final byte FRAME_PUBLISHER = 1;
+    // client -> server: register as subscriber, payload is the topic name
+    public static final byte FRAME_SUBSCRIBER = 2;
+    // server -> client: topicId assigned to the topic name in the payload
+    public static final byte FRAME_BIND = 3;
+    // both ways: a published message for topicId
+    public static final byte FRAME_MESSAGE = 4;
+    // server -> client: informational text (welcome, errors)
+    public static final byte FRAME_INFO = 5;
+    // client -> server: close the connection
+    public static final byte FRAME_TERMINATE = 6;
+    // client -> server: add a subscription, payload is the topic or pattern
+    public static final byte FRAME_SUBSCRIBE = 7;
+    // client -> server: drop a subscription, payload as given to SUBSCRIBE
+    public static final byte FRAME_UNSUBSCRIBE = 8;
+    // client -> server: allow n more frames to be sent, payload is n as a
+    // 4-byte int; the first CREDIT turns on flow control
+    public static final byte FRAME_CREDIT = 9;
+    // client -> server: several messages for topicId, the payload being each
+    // one as [length:4][bytes]; routed like that many MESSAGE frames
+    public static final byte FRAME_PUBLISH_BATCH = 10;
+
+    private MessageCodec() {
+    }
+
+    // A decoded binary frame
+    public static final class Frame {
+        public final byte type;
+        public final byte flags;
+        public final int topicId;
+        public final byte[] payload;
+
+        public Frame(byte type, byte flags, int topicId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.topicId = topicId;
+            this.payload = payload;
+        }
+
+        public String payloadText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Newline-terminated UTF-8 text line
+    public static ByteBuffer encodeLine(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] line = Arrays.copyOf(text, text.length + 1);
+        line[text.length] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+
+    // Text line made of an already encoded prefix and payload, so payload
+    // bytes never need to be decoded to be relayed
+    public static ByteBuffer encodeLine(byte[] prefix, byte[] payload) {
+        byte[] line = new byte[prefix.length + payload.length + 1];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        System.arraycopy(payload, 0, line, prefix.length, payload.length);
+        line[line.length - 1] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+
+    public static ByteBuffer encodeFrame(byte type, int topicId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.put(type).put((byte) 0).putInt(topicId).putInt(payload.length).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    // Header of a frame being built in place, ahead of its payload
+    public static void putHeader(ByteBuffer frame, byte type, int topicId, int length) {
+        frame.put(0, type).put(1, (byte) 0).putInt(2, topicId).putInt(6, length);
+    }
+
+    public static void writeFrame(DataOutputStream out, byte type, int topicId, byte[] payload) throws IOException {
+        writeFrame(out, type, topicId, payload, payload.length);
+    }
+
+    // A frame whose payload is the first length bytes of payload
+    public static void writeFrame(DataOutputStream out, byte type, int topicId, byte[] payload, int length)
+            throws IOException {
+        out.writeByte(type);
+        out.writeByte(0);
+        out.writeInt(topicId);
+        out.writeInt(length);
+        out.write(payload, 0, length);
+    }
+
+    // Blocking read of one frame; returns null at end of stream
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        byte flags = in.readByte();
+        int topicId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame((byte) type, flags, topicId, payload);
+    }
+
+    // Take one complete frame from a buffer in read mode, or return null and
+    // leave the buffer untouched if it does not hold a whole frame yet
+    public static Frame decodeFrame(ByteBuffer buffer) throws IOException {
+        int length = frameLength(buffer) - HEADER_LENGTH;
+        if (length < 0) {
+            return null;
+        }
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int topicId = buffer.getInt();
+        buffer.getInt();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return new Frame(type, flags, topicId, payload);
+    }
+
+    // Length, header included, of the complete frame at the buffer's
+    // position, or -1 if it has not all arrived yet; nothing is consumed
+    public static int frameLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position() + 6);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return buffer.remaining() < HEADER_LENGTH + length ? -1 : HEADER_LENGTH + length;
+    }
+
+    // Index of the '\n' ending the line at the buffer's position, or -1 if
+    // there is no complete line yet; nothing is consumed
+    public static int lineEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Take one newline-terminated line from a buffer in read mode, or return
+    // null if there is no complete line yet
+    public static String decodeLine(ByteBuffer buffer) {
+        int newline = lineEnd(buffer);
+        if (newline < 0) {
+            return null;
+        }
+        int start = buffer.position();
+        int end = newline;
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(bytes);
+        buffer.position(newline + 1);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
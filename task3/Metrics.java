@@ -0,0 +1,103 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server counters, updated incrementally as clients come and go and messages
+// flow. Nothing here is printed on change; snapshots are taken on demand (the
+// STATS command or --stats-interval sampler). Counters are striped LongAdders
+// so publishers on different cores don't contend on one cache line.
+public class Metrics {
+    private final ConcurrentHashMap<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+    private final LongAdder messagesWritten = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+
+    public void publisherAdded(String topic) {
+        topics.compute(topic, (key, metrics) -> {
+            TopicMetrics updated = metrics != null ? metrics : new TopicMetrics();
+            updated.publishers.increment();
+            return updated;
+        });
+    }
+
+    public void subscriberAdded(String topic) {
+        topics.compute(topic, (key, metrics) -> {
+            TopicMetrics updated = metrics != null ? metrics : new TopicMetrics();
+            updated.subscribers.increment();
+            return updated;
+        });
+    }
+
+    // A topic's counters are discarded with its last client
+    public void publisherRemoved(String topic) {
+        topics.computeIfPresent(topic, (key, metrics) -> {
+            metrics.publishers.decrement();
+            return metrics.isIdle() ? null : metrics;
+        });
+    }
+
+    public void subscriberRemoved(String topic) {
+        topics.computeIfPresent(topic, (key, metrics) -> {
+            metrics.subscribers.decrement();
+            return metrics.isIdle() ? null : metrics;
+        });
+    }
+
+    // One call per publish, after the fan-out loop
+    public void recordPublish(String topic, int bytesIn, int delivered, long bytesOut, int dropped) {
+        TopicMetrics metrics = topics.get(topic);
+        if (metrics == null) {
+            return;
+        }
+        metrics.messagesIn.increment();
+        metrics.bytesIn.add(bytesIn);
+        if (delivered > 0) {
+            metrics.messagesOut.add(delivered);
+            metrics.bytesOut.add(bytesOut);
+        }
+        if (dropped > 0) {
+            metrics.dropped.add(dropped);
+        }
+    }
+
+    public void recordWrites(int messages, int writeCalls) {
+        messagesWritten.add(messages);
+        socketWrites.add(writeCalls);
+    }
+
+    public int activeTopics() {
+        return topics.size();
+    }
+
+    public Map<String, TopicMetrics> topics() {
+        return topics;
+    }
+
+    public long messagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    public long socketWrites() {
+        return socketWrites.sum();
+    }
+}
+
+// Counters for one topic
+class TopicMetrics {
+    final LongAdder publishers = new LongAdder();
+    final LongAdder subscribers = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    boolean isIdle() {
+        return publishers.sum() <= 0 && subscribers.sum() <= 0;
+    }
+
+    String describe() {
+        return publishers.sum() + " publishers, " + subscribers.sum() + " subscribers, in "
+                + messagesIn.sum() + " msgs/" + bytesIn.sum() + " bytes, out " + messagesOut.sum() + " msgs/"
+                + bytesOut.sum() + " bytes, dropped " + dropped.sum();
+    }
+}
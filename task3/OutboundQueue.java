@@ -0,0 +1,135 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded queue of messages waiting to be written to one subscriber. Publishers
+// only ever offer to it; the subscriber's own writer drains it, so a slow
+// consumer fills its own queue instead of stalling the topic.
+//
+// Each queued frame holds one reference (see PooledBuffer). Offering hands
+// that reference to the queue, which releases it for any frame it drops;
+// whoever polls a frame releases it once written.
+//
+// The drop policies only ever drop messages. Control frames (BINDs, INFO
+// lines, the close marker) are never dropped: a client that lost the BIND
+// for a topic id could not read that topic's messages, and the server
+// records the id as bound once it is queued. A control frame offered to a
+// full queue makes room by dropping the oldest message instead.
+public class OutboundQueue {
+    private final BlockingQueue<PooledBuffer> queue;
+    private final ServerConfig.OverflowPolicy policy;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Outcome of offering a message
+    public enum Offer {
+        QUEUED, // queued without loss
+        DROPPED, // queue was full; a message was dropped per the overflow policy
+        REJECTED // queue was full and the subscriber should be disconnected
+    }
+
+    public OutboundQueue(int capacity, ServerConfig.OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    public Offer offer(PooledBuffer message) {
+        if (queue.offer(message)) {
+            return Offer.QUEUED;
+        }
+
+        if (message.isControl() && policy != ServerConfig.OverflowPolicy.DISCONNECT) {
+            while (!queue.offer(message)) {
+                if (!dropOldestMessage()) {
+                    // Nothing but control frames queued
+                    return Offer.REJECTED;
+                }
+            }
+            return Offer.DROPPED;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (!dropOldestMessage()) {
+                        message.release();
+                        dropped.incrementAndGet();
+                        break;
+                    }
+                }
+                return Offer.DROPPED;
+            case DROP_NEWEST:
+                message.release();
+                dropped.incrementAndGet();
+                return Offer.DROPPED;
+            default:
+                message.release();
+                return Offer.REJECTED;
+        }
+    }
+
+    // Drop the oldest queued message, passing over control frames. Returns
+    // false if there is none to drop; true also when the writer took it
+    // first, which makes room just the same.
+    private boolean dropOldestMessage() {
+        PooledBuffer oldest = queue.peek();
+        if (oldest != null && oldest.isControl()) {
+            // Rare: look further back, past the control frames at the head
+            oldest = null;
+            for (PooledBuffer queued : queue) {
+                if (!queued.isControl()) {
+                    oldest = queued;
+                    break;
+                }
+            }
+            if (oldest == null) {
+                return false;
+            }
+        }
+        if (oldest != null && queue.remove(oldest)) {
+            oldest.release();
+            dropped.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Wait up to the timeout for room; the overflow policy does not apply.
+    // The caller keeps the message's reference if it was not queued.
+    public boolean offer(PooledBuffer message, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(message, timeout, unit);
+    }
+
+    public PooledBuffer poll() {
+        return queue.poll();
+    }
+
+    public PooledBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    public PooledBuffer take() throws InterruptedException {
+        return queue.take();
+    }
+
+    // Release everything still queued, once the subscriber is gone
+    public void clear() {
+        PooledBuffer message;
+        while ((message = queue.poll()) != null) {
+            message.release();
+        }
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    public int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
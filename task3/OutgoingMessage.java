@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RecursiveTask;
+
+// One message being routed, with its wire forms. The message arrives as a
+// pooled MESSAGE frame, [header][payload], which binary subscribers get
+// as it is; the text line for text subscribers is built from it on first
+// use, in a pooled buffer of its own. Each form is then shared by every
+// subscriber that needs it, from however many fan-out threads.
+//
+// Routing is synchronous, so each routing thread reuses one instance
+// (forThread), and routing a message allocates nothing.
+class OutgoingMessage {
+    private static final ThreadLocal<OutgoingMessage> CURRENT = ThreadLocal.withInitial(OutgoingMessage::new);
+
+    Server server;
+    Topic topic;
+    Publication from;
+    // Counts for the part of the fan-out done on the routing thread
+    final FanOutCount count = new FanOutCount();
+    private PooledBuffer frame;
+    private volatile PooledBuffer textFrame;
+
+    static OutgoingMessage forThread() {
+        return CURRENT.get();
+    }
+
+    // Takes over the frame's reference until finish()
+    OutgoingMessage begin(Server server, PooledBuffer frame, Publication from) {
+        this.server = server;
+        this.frame = frame;
+        this.from = from;
+        this.topic = from.topic;
+        count.sent = 0;
+        count.bytes = 0;
+        count.dropped = 0;
+        MessageCodec.putHeader(frame.buffer(), MessageCodec.FRAME_MESSAGE, topic.id,
+                frame.length() - MessageCodec.HEADER_LENGTH);
+        return this;
+    }
+
+    int payloadLength() {
+        return frame.length() - MessageCodec.HEADER_LENGTH;
+    }
+
+    PooledBuffer binary() {
+        return frame;
+    }
+
+    PooledBuffer text() {
+        PooledBuffer text = textFrame;
+        if (text == null) {
+            synchronized (this) {
+                text = textFrame;
+                if (text == null) {
+                    text = from.encodeLine(server.bufferPool(), frame);
+                    textFrame = text;
+                }
+            }
+        }
+        return text;
+    }
+
+    // The text form if it has been encoded, or null, for the topic's history
+    PooledBuffer encodedText() {
+        return textFrame;
+    }
+
+    // Drop this message's own references; subscribers' queues keep theirs
+    void finish() {
+        frame.release();
+        PooledBuffer text = textFrame;
+        if (text != null) {
+            text.release();
+        }
+        frame = null;
+        textFrame = null;
+        from = null;
+        topic = null;
+        server = null;
+    }
+}
+
+// One publisher's view of one topic, set up when it registers the topic:
+// the text subscribers' line prefix and the log's publisher field are
+// encoded here once instead of for every message.
+class Publication {
+    final Topic topic;
+    final String publisherInfo;
+    final byte[] publisherInfoBytes;
+    final byte[] textPrefix;
+
+    Publication(Topic topic, String publisherInfo) {
+        this.topic = topic;
+        this.publisherInfo = publisherInfo;
+        this.publisherInfoBytes = publisherInfo.getBytes(StandardCharsets.UTF_8);
+        this.textPrefix = ("[TOPIC:" + topic.name + "] [PUBLISHER " + publisherInfo + "]: ")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The text line for a MESSAGE frame's payload, in a new pooled buffer
+    PooledBuffer encodeLine(BufferPool pool, PooledBuffer frame) {
+        int payloadLength = frame.length() - MessageCodec.HEADER_LENGTH;
+        PooledBuffer line = pool.allocate(textPrefix.length + payloadLength + 1);
+        ByteBuffer buffer = line.buffer();
+        buffer.put(0, textPrefix);
+        buffer.put(textPrefix.length, frame.buffer(), MessageCodec.HEADER_LENGTH, payloadLength);
+        buffer.put(line.length() - 1, (byte) '\n');
+        return line;
+    }
+}
+
+// What one stretch of a fan-out delivered, for the topic counters
+class FanOutCount {
+    int sent;
+    long bytes;
+    int dropped;
+
+    FanOutCount add(FanOutCount other) {
+        sent += other.sent;
+        bytes += other.bytes;
+        dropped += other.dropped;
+        return this;
+    }
+}
+
+// Parallel delivery of subscribers[from, to) (--parallel-fanout): halves the
+// range, forking one half for another pool thread to steal, until a piece is
+// at most --fanout-chunk subscribers, which is delivered in order. Each
+// subscriber is in exactly one piece, and the publishing thread waits for
+// the whole fan-out before routing the topic's next message, so every
+// subscriber still receives a topic's messages in order.
+class FanOutTask extends RecursiveTask<FanOutCount> {
+    private static final long serialVersionUID = 1L;
+
+    private final ClientHandler[] subscribers;
+    private final int from;
+    private final int to;
+    private final int chunk;
+    private final OutgoingMessage message;
+
+    FanOutTask(ClientHandler[] subscribers, int from, int to, int chunk, OutgoingMessage message) {
+        this.subscribers = subscribers;
+        this.from = from;
+        this.to = to;
+        this.chunk = chunk;
+        this.message = message;
+    }
+
+    @Override
+    protected FanOutCount compute() {
+        if (to - from <= chunk) {
+            FanOutCount count = new FanOutCount();
+            message.server.deliverRange(subscribers, from, to, message, count);
+            return count;
+        }
+        int middle = (from + to) >>> 1;
+        FanOutTask upper = new FanOutTask(subscribers, middle, to, chunk, message);
+        upper.fork();
+        FanOutCount count = new FanOutTask(subscribers, from, middle, chunk, message).compute();
+        return count.add(upper.join());
+    }
+}
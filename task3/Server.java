@@ -1,64 +1,304 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Server {
     private ServerSocket serverSocket;
     private int port;
     private boolean running = false;
     private ExecutorService threadPool;
+    private final ServerConfig config;
+    private EventLoopGroup eventLoops;
 
     // Topic-based collections to manage connected clients
-    private final Map<String, Set<ClientHandler>> publishersByTopic = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, Set<ClientHandler>> subscribersByTopic = Collections.synchronizedMap(new HashMap<>());
-    private final Set<ClientHandler> allClients = Collections.synchronizedSet(new HashSet<>());
+    private final TopicRegistry publishersByTopic = new TopicRegistry();
+    // Shared subscriptions, where each message goes to one member
+    private final ConsumerGroups consumerGroups = new ConsumerGroups();
+    private final Set<ClientHandler> allClients = ConcurrentHashMap.newKeySet();
+    // Dense ids for every topic and pattern in use; see TopicTable
+    private final TopicTable topicTable = new TopicTable();
+    // Subscriptions may be patterns; see TopicTrie
+    private final TopicTrie subscribersByTopic = new TopicTrie(topicTable);
+    private final Metrics metrics = new Metrics();
+    private ScheduledExecutorService statsSampler;
+    // Per-topic message logs; null unless --persist-dir is set
+    private LogStore logStore;
+    // Last-N messages per topic for late joiners (--history), at most
+    // --history-topics of them; created and dropped under the map's lock
+    private final Map<String, TopicHistory> histories = new ConcurrentHashMap<>();
+    // Whether, and since when, no history could be dropped to make room
+    private boolean historiesFull = false;
+    private long historiesFullSince;
+    // Per-topic routing threads (--dispatchers); null routes on the
+    // publisher's own thread
+    private volatile DispatcherGroup dispatchers;
+    // Work-stealing pool for fanning out to very large topics
+    // (--parallel-fanout); null if off
+    private final ForkJoinPool fanOutPool;
+    // Message frames, shared by reference count (--buffer-pool-mb)
+    private final BufferPool bufferPool;
+    // Same-host clients over shared memory (--shm-dir); null if off
+    private ShmTransport shmTransport;
+    // Listener on --unix-socket beside the TCP port, in the blocking modes
+    // (the event loops own theirs in nio mode); null if off
+    private ServerSocketChannel unixChannel;
 
     public Server(int port) {
+        this(port, new ServerConfig());
+    }
+
+    public Server(int port, ServerConfig config) {
         this.port = port;
-        this.threadPool = Executors.newCachedThreadPool();
+        this.config = config;
+        this.threadPool = config.getIoMode() == ServerConfig.IoMode.VIRTUAL
+                ? newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool();
+        // Its threads are only started once a large topic needs them
+        this.fanOutPool = config.getParallelFanOutThreshold() > 0
+                ? new ForkJoinPool(config.getFanOutThreads())
+                : null;
+        this.bufferPool = new BufferPool(config.getBufferPoolBytes(), config.isDirectBuffers());
+    }
+
+    // Virtual threads need Java 21+; looked up reflectively so the server still
+    // compiles and runs (on the cached pool) with older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not available on this JVM, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
     }
 
     public void start() {
+        if (config.getPersistDir() != null) {
+            try {
+                logStore = new LogStore(config);
+            } catch (IOException e) {
+                Log.error("Cannot open persistence directory: " + e.getMessage());
+                Log.flush();
+                return;
+            }
+        }
+        startStatsSampler();
+        if (config.getDispatcherThreads() > 0) {
+            dispatchers = new DispatcherGroup(this, config.getDispatcherThreads(), config.getDispatchQueueCapacity());
+        }
+        if (config.getShmDir() != null) {
+            try {
+                shmTransport = new ShmTransport(this, Paths.get(config.getShmDir()));
+            } catch (IOException e) {
+                Log.error("Cannot open shared memory directory: " + e.getMessage());
+                Log.flush();
+                return;
+            }
+            shmTransport.start();
+            Log.info("Accepting shared memory clients in " + shmTransport.getDirectory());
+        }
+        if (config.getIoMode() == ServerConfig.IoMode.NIO) {
+            startEventLoops();
+            return;
+        }
+
         try {
+            // Bound first, so a client that reaches the port can reach the path
+            if (config.getUnixSocketPath() != null) {
+                unixChannel = UnixSocket.bind(Paths.get(config.getUnixSocketPath()));
+                Log.info("Listening on Unix domain socket " + config.getUnixSocketPath());
+            }
             serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("Pub-Sub Server started on port " + port);
+            if (unixChannel != null) {
+                startUnixAcceptor();
+            }
+            Log.info("Pub-Sub Server started on port " + port
+                    + (config.getIoMode() == ServerConfig.IoMode.VIRTUAL ? " (virtual threads)" : ""));
 
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    configureSocket(clientSocket);
                     ClientHandler clientHandler = new ClientHandler(clientSocket, this);
                     allClients.add(clientHandler);
                     threadPool.execute(clientHandler);
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                        Log.error("Error accepting client connection: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Server error: " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
+    // Unix domain connections are accepted on a thread of their own and then
+    // served exactly like TCP ones, through the same topic registry
+    private void startUnixAcceptor() {
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel channel = unixChannel.accept();
+                    configureChannel(channel);
+                    ClientHandler clientHandler = new ClientHandler(
+                            new UnixSocket(channel, UnixSocket.describe(channel)), this);
+                    allClients.add(clientHandler);
+                    threadPool.execute(clientHandler);
+                } catch (IOException e) {
+                    if (running) {
+                        Log.error("Error accepting client connection: " + e.getMessage());
                     }
                 }
             }
+        }, "unix-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Non-blocking mode: a fixed number of Selector threads handle accept, read,
+    // routing and write for every connection
+    private void startEventLoops() {
+        try {
+            eventLoops = new EventLoopGroup(this, config.getEventLoopThreads());
+            eventLoops.bind(port, config.getUnixSocketPath() != null ? Paths.get(config.getUnixSocketPath()) : null);
+            if (config.getUnixSocketPath() != null) {
+                Log.info("Listening on Unix domain socket " + config.getUnixSocketPath());
+            }
+            running = true;
+            Log.info("Pub-Sub Server started on port " + port + " (nio, "
+                    + config.getEventLoopThreads() + " event loops)");
+            eventLoops.awaitTermination();
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            Log.error("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             stop();
         }
     }
 
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    // Run a connection's outbound writer alongside its reader
+    Future<?> startWriter(Runnable writer) {
+        return threadPool.submit(writer);
+    }
+
+    // Apply the configured TCP options to an accepted client socket
+    void configureSocket(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(config.isTcpNoDelay());
+        if (config.getSendBufferSize() > 0) {
+            socket.setSendBufferSize(config.getSendBufferSize());
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            socket.setReceiveBufferSize(config.getReceiveBufferSize());
+        }
+    }
+
+    // The same for a channel accepted in nio mode or on --unix-socket; Unix
+    // domain sockets have no TCP_NODELAY
+    void configureChannel(SocketChannel channel) throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+        }
+        if (config.getSendBufferSize() > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+    }
+
+    // Count messages handed to the OS and the write calls it took
+    void recordWrites(int messages, int writeCalls) {
+        metrics.recordWrites(messages, writeCalls);
+    }
+
+    // Log a statistics snapshot every --stats-interval seconds
+    private void startStatsSampler() {
+        int interval = config.getStatsIntervalSeconds();
+        if (interval <= 0) {
+            return;
+        }
+        statsSampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statsSampler.scheduleAtFixedRate(() -> Log.info(getStatistics()), interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Track a connection accepted outside the blocking accept loop
+    void addClient(ClientHandler client) {
+        allClients.add(client);
+    }
+
     public void stop() {
         running = false;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (unixChannel != null) {
+                unixChannel.close();
+            }
+            if (config.getUnixSocketPath() != null) {
+                Files.deleteIfExists(Paths.get(config.getUnixSocketPath()));
+            }
 
             // Close all client connections
-            synchronized (allClients) {
-                for (ClientHandler client : allClients) {
-                    client.disconnect();
-                }
-                allClients.clear();
-                publishersByTopic.clear();
-                subscribersByTopic.clear();
+            for (ClientHandler client : allClients) {
+                client.disconnect();
+            }
+            allClients.clear();
+            publishersByTopic.clear();
+            subscribersByTopic.clear();
+            consumerGroups.clear();
+            topicTable.clear();
+
+            if (eventLoops != null) {
+                eventLoops.shutdown();
+            }
+
+            if (shmTransport != null) {
+                shmTransport.shutdown();
+            }
+
+            if (statsSampler != null) {
+                statsSampler.shutdownNow();
+            }
+
+            if (dispatchers != null) {
+                dispatchers.shutdown();
+            }
+
+            if (fanOutPool != null) {
+                fanOutPool.shutdown();
+            }
+
+            if (logStore != null) {
+                logStore.close();
             }
 
             threadPool.shutdown();
@@ -70,118 +310,567 @@ public class Server {
                 threadPool.shutdownNow();
             }
 
-            System.out.println("Server stopped.");
+            Log.info("Server stopped.");
+            Log.flush();
         } catch (IOException e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            Log.error("Error stopping server: " + e.getMessage());
+        }
+    }
+
+    // Broadcast message from publisher to subscribers of the same topic.
+    // Returns as broadcastFrame().
+    public Dispatcher broadcastToTopicSubscribers(String message, Publication from) {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Broadcasting on topic '" + from.topic + "': [TOPIC:" + from.topic + "] [PUBLISHER "
+                    + from.publisherInfo + "]: " + message);
         }
+        return broadcastToTopicSubscribers(message.getBytes(StandardCharsets.UTF_8), from);
     }
 
-    // Broadcast message from publisher to subscribers of the same topic
-    public void broadcastToTopicSubscribers(String message, String publisherInfo, String topic) {
-        String formattedMessage = "[TOPIC:" + topic + "] [PUBLISHER " + publisherInfo + "]: " + message;
-        System.out.println("Broadcasting on topic '" + topic + "': " + formattedMessage);
+    // Copy a raw payload into a pooled frame and route it
+    public Dispatcher broadcastToTopicSubscribers(byte[] payload, Publication from) {
+        PooledBuffer frame = bufferPool.allocate(MessageCodec.HEADER_LENGTH + payload.length);
+        frame.buffer().put(MessageCodec.HEADER_LENGTH, payload);
+        return broadcastFrame(frame, from);
+    }
 
-        Set<ClientHandler> topicSubscribers = subscribersByTopic.get(topic);
-        if (topicSubscribers == null || topicSubscribers.isEmpty()) {
-            System.out.println("No subscribers found for topic: " + topic);
+    // By name, for callers that have not registered the topic; the topic is
+    // only held for the duration of the call
+    public void broadcastToTopicSubscribers(byte[] payload, String publisherInfo, String topic) {
+        Topic entry = topicTable.acquire(topic);
+        if (entry == null) {
+            Log.warn("Dropped message on topic '" + topic + "': too many topics");
             return;
         }
+        try {
+            broadcastToTopicSubscribers(payload, new Publication(entry, publisherInfo));
+        } finally {
+            topicTable.release(topic);
+        }
+    }
 
-        synchronized (topicSubscribers) {
-            Iterator<ClientHandler> iterator = topicSubscribers.iterator();
-            int messagesSent = 0;
-            while (iterator.hasNext()) {
-                ClientHandler subscriber = iterator.next();
-                if (subscriber.sendMessage(formattedMessage)) {
-                    messagesSent++;
-                } else {
-                    // Remove disconnected subscriber
-                    iterator.remove();
-                    allClients.remove(subscriber);
+    // Route a MESSAGE frame, whose header routing fills in, taking over its
+    // reference: on the topic's dispatcher thread with --dispatchers,
+    // otherwise right here on the publisher's thread. Returns the dispatcher
+    // if its queue is now full and the publisher should back off, else null.
+    Dispatcher broadcastFrame(PooledBuffer frame, Publication from) {
+        DispatcherGroup group = dispatchers;
+        if (group != null) {
+            return group.submit(frame, from);
+        }
+        route(frame, from);
+        return null;
+    }
+
+    // broadcastFrame() for frames[0, count), all on one topic, taking over
+    // their references; the caller may reuse the array afterwards
+    Dispatcher broadcastFrames(PooledBuffer[] frames, int count, Publication from) {
+        if (count == 1) {
+            return broadcastFrame(frames[0], from);
+        }
+        DispatcherGroup group = dispatchers;
+        if (group != null) {
+            return group.submit(frames, count, from);
+        }
+        route(frames, count, from);
+        return null;
+    }
+
+    // With persistence on, the message is appended to the topic's log first;
+    // append and fan-out happen under the log's lock so delivery follows log
+    // order, which replays rely on (see LogReplay).
+    void route(PooledBuffer frame, Publication from) {
+        if (logStore == null) {
+            publish(frame, from);
+            return;
+        }
+        TopicLog log;
+        try {
+            log = logStore.log(from.topic.name);
+        } catch (IOException e) {
+            Log.error("Cannot open log for topic '" + from.topic + "': " + e.getMessage());
+            publish(frame, from);
+            return;
+        }
+        synchronized (log) {
+            append(log, frame, from);
+            publish(frame, from);
+        }
+    }
+
+    // route() for a batch of messages on one topic: the log and history
+    // locks are taken once for the whole batch rather than per message
+    void route(PooledBuffer[] frames, int count, Publication from) {
+        TopicLog log = null;
+        if (logStore != null) {
+            try {
+                log = logStore.log(from.topic.name);
+            } catch (IOException e) {
+                Log.error("Cannot open log for topic '" + from.topic + "': " + e.getMessage());
+            }
+        }
+        if (log == null) {
+            publish(frames, count, from);
+            return;
+        }
+        synchronized (log) {
+            for (int i = 0; i < count; i++) {
+                append(log, frames[i], from);
+            }
+            publish(frames, count, from);
+        }
+    }
+
+    private static void append(TopicLog log, PooledBuffer frame, Publication from) {
+        try {
+            log.append(from.publisherInfoBytes, frame.buffer(), MessageCodec.HEADER_LENGTH,
+                    frame.length() - MessageCodec.HEADER_LENGTH);
+        } catch (IOException e) {
+            Log.error("Cannot append to log for topic '" + from.topic + "': " + e.getMessage());
+        }
+    }
+
+    // Fan out, recording the message in the topic's history if it keeps one.
+    // The history's lock covers both, so a subscriber registering under it
+    // (see registerSubscriber) gets each message exactly once.
+    private void publish(PooledBuffer frame, Publication from) {
+        TopicHistory history = history(from.topic);
+        if (history == null) {
+            publish(frame, from, null);
+            return;
+        }
+        synchronized (history) {
+            publish(frame, from, history);
+        }
+    }
+
+    private void publish(PooledBuffer[] frames, int count, Publication from) {
+        TopicHistory history = history(from.topic);
+        if (history == null) {
+            for (int i = 0; i < count; i++) {
+                publish(frames[i], from, null);
+            }
+            return;
+        }
+        synchronized (history) {
+            for (int i = 0; i < count; i++) {
+                publish(frames[i], from, history);
+            }
+        }
+    }
+
+    private void publish(PooledBuffer frame, Publication from, TopicHistory history) {
+        OutgoingMessage message = OutgoingMessage.forThread().begin(this, frame, from);
+        try {
+            deliverToSubscribers(message, history);
+        } finally {
+            message.finish();
+        }
+    }
+
+    // The topic's history, created on its first publish or subscriber, so
+    // both always find the same one; null if the topic keeps none
+    private TopicHistory history(Topic topic) {
+        if (!config.hasHistory()) {
+            return null;
+        }
+        TopicHistory history = histories.get(topic.name);
+        if (history != null) {
+            return history;
+        }
+        int size = config.getHistorySize(topic.name);
+        if (size == 0 || TopicTrie.isPattern(topic.name)) {
+            return null;
+        }
+        synchronized (histories) {
+            history = histories.get(topic.name);
+            if (history != null) {
+                return history;
+            }
+            if (histories.size() >= config.getHistoryTopics() && !evictHistory()) {
+                return null;
+            }
+            // The history outlives the topic's clients and its frames carry
+            // the topic's id, so it keeps a reference: the id stays in use
+            if (topicTable.acquire(topic.name) == null) {
+                return null;
+            }
+            history = new TopicHistory(bufferPool, size);
+            histories.put(topic.name, history);
+            return history;
+        }
+    }
+
+    // Make room for a new history by dropping one whose topic has no clients
+    // left, releasing the reference the history held. Returns false if every
+    // history's topic is still in use; the map is then not scanned again for
+    // a second, so a full map does not cost each publish a scan.
+    private boolean evictHistory() {
+        long now = System.nanoTime();
+        if (historiesFull && now - historiesFullSince < TimeUnit.SECONDS.toNanos(1)) {
+            return false;
+        }
+        for (Map.Entry<String, TopicHistory> entry : histories.entrySet()) {
+            if (topicTable.releaseIfLast(entry.getKey())) {
+                histories.remove(entry.getKey());
+                TopicHistory evicted = entry.getValue();
+                synchronized (evicted) {
+                    evicted.clear();
                 }
+                Log.debug("Dropped the history of idle topic '" + entry.getKey() + "' to make room");
+                historiesFull = false;
+                return true;
             }
-            System.out.println("Message broadcasted to " + messagesSent + " subscribers on topic: " + topic);
         }
+        if (!historiesFull) {
+            Log.warn("Every topic keeping a history is in use (--history-topics=" + config.getHistoryTopics()
+                    + "); new topics keep none for now");
+        }
+        historiesFull = true;
+        historiesFullSince = now;
+        return false;
     }
 
-    // Register client as publisher for a specific topic
-    public void registerPublisher(ClientHandler client, String topic) {
-        publishersByTopic.computeIfAbsent(topic, k -> Collections.synchronizedSet(new HashSet<>())).add(client);
-        System.out.println("Publisher registered for topic '" + topic + "'. Total publishers on this topic: " +
-                publishersByTopic.get(topic).size());
-        displayTopicStatistics();
+    // Text subscribers get the formatted line and binary subscribers the
+    // MESSAGE frame; each form is encoded at most once and the payload itself
+    // is never decoded.
+    private void deliverToSubscribers(OutgoingMessage message, TopicHistory history) {
+        Topic topic = message.topic;
+        int payloadLength = message.payloadLength();
+        // Snapshot read: the registry is not locked while delivering. Exact
+        // and wildcard subscriptions are matched together, from the match
+        // cached on the topic.
+        ClientHandler[] topicSubscribers = subscribersByTopic.match(topic);
+        ConsumerGroup[] groups = consumerGroups.match(topic);
+        if (topicSubscribers.length == 0 && groups.length == 0) {
+            if (history != null) {
+                history.add(message.from, message.binary(), null);
+            }
+            metrics.recordPublish(topic.name, payloadLength, 0, 0, 0);
+            if (Log.isDebugEnabled()) {
+                Log.debug("No subscribers found for topic: " + topic);
+            }
+            return;
+        }
+
+        FanOutCount count = message.count;
+        if (fanOutPool != null && topicSubscribers.length >= config.getParallelFanOutThreshold()) {
+            // Large topic: this thread delivers the first chunk while the
+            // pool splits up the rest
+            int chunk = config.getFanOutChunk();
+            int first = Math.min(chunk, topicSubscribers.length);
+            ForkJoinTask<FanOutCount> rest = fanOutPool.submit(
+                    new FanOutTask(topicSubscribers, first, topicSubscribers.length, chunk, message));
+            deliverRange(topicSubscribers, 0, first, message, count);
+            count.add(rest.join());
+        } else {
+            deliverRange(topicSubscribers, 0, topicSubscribers.length, message, count);
+        }
+        if (groups.length > 0) {
+            deliverToGroups(groups, message, count);
+        }
+        if (history != null) {
+            history.add(message.from, message.binary(), message.encodedText());
+        }
+        metrics.recordPublish(topic.name, payloadLength, count.sent, count.bytes, count.dropped);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Message broadcasted to " + count.sent + " subscribers on topic: " + topic);
+        }
     }
 
-    // Register client as subscriber for a specific topic
-    public void registerSubscriber(ClientHandler client, String topic) {
-        subscribersByTopic.computeIfAbsent(topic, k -> Collections.synchronizedSet(new HashSet<>())).add(client);
-        System.out.println("Subscriber registered for topic '" + topic + "'. Total subscribers on this topic: " +
-                subscribersByTopic.get(topic).size());
-        displayTopicStatistics();
+    // Deliver a message to subscribers[from, to) in order, adding to count;
+    // used directly for most topics and by each FanOutTask for the large ones
+    void deliverRange(ClientHandler[] subscribers, int from, int to, OutgoingMessage message, FanOutCount count) {
+        String topic = message.topic.name;
+        for (int i = from; i < to; i++) {
+            ClientHandler subscriber = subscribers[i];
+            if (subscriber.isReplaying(topic)) {
+                // Still catching up from the log, which already holds this
+                continue;
+            }
+            offer(subscriber, message, count);
+        }
     }
 
-    // Remove client from all collections
-    public void removeClient(ClientHandler client, String clientType, String topic) {
-        if ("PUBLISHER".equals(clientType)) {
-            Set<ClientHandler> topicPublishers = publishersByTopic.get(topic);
-            if (topicPublishers != null) {
-                topicPublishers.remove(client);
-                if (topicPublishers.isEmpty()) {
-                    publishersByTopic.remove(topic);
+    // One member of each consumer group gets the message. A member found to
+    // be gone is removed, which swaps the group's member array, and the
+    // message goes to one of the remaining members instead, so a disconnect
+    // neither loses it nor holds up the group.
+    private void deliverToGroups(ConsumerGroup[] groups, OutgoingMessage message, FanOutCount count) {
+        ServerConfig.GroupBalance balance = config.getGroupBalance();
+        for (ConsumerGroup group : groups) {
+            ClientHandler[] members = group.members;
+            // Each failed attempt removes a member, so this ends
+            for (int attempts = members.length; attempts > 0 && members.length > 0; attempts--) {
+                if (offer(group.pick(members, balance), message, count)) {
+                    group.delivered.increment();
+                    break;
                 }
+                members = group.members;
+            }
+        }
+    }
+
+    // Queue a message to one subscriber, adding to count; false if the
+    // subscriber turned out to be gone and has been unregistered
+    private boolean offer(ClientHandler subscriber, OutgoingMessage message, FanOutCount count) {
+        PooledBuffer frame;
+        if (subscriber.isBinary()) {
+            frame = message.binary();
+            // A wildcard subscriber learns each concrete topic's id first
+            subscriber.bindTopic(message.topic);
+        } else {
+            frame = message.text();
+        }
+
+        // Each queued copy holds its own reference
+        OutboundQueue.Offer result = subscriber.deliver(frame.retain());
+        if (result == OutboundQueue.Offer.REJECTED) {
+            // Remove disconnected subscriber from all of its
+            // subscriptions, which may be patterns rather than this topic
+            for (String subscription : subscriber.getSubscriptions()) {
+                unregisterSubscriber(subscriber, subscription);
+            }
+            allClients.remove(subscriber);
+            return false;
+        }
+        count.sent++;
+        count.bytes += frame.length();
+        if (result == OutboundQueue.Offer.DROPPED) {
+            count.dropped++;
+        }
+        return true;
+    }
+
+    // One message encoded for a single subscriber, as a replay sends it
+    ByteBuffer encodeMessage(ClientHandler subscriber, String topic, String publisherInfo, byte[] payload) {
+        if (subscriber.isBinary()) {
+            // Live while the subscriber's subscription holds it; if that is
+            // already gone, the id is only needed for this one frame
+            int id = topicId(topic);
+            if (id == 0) {
+                Topic entry = topicTable.acquire(topic);
+                id = entry != null ? entry.id : 0;
+                topicTable.release(topic);
             }
-        } else if ("SUBSCRIBER".equals(clientType)) {
-            Set<ClientHandler> topicSubscribers = subscribersByTopic.get(topic);
-            if (topicSubscribers != null) {
-                topicSubscribers.remove(client);
-                if (topicSubscribers.isEmpty()) {
-                    subscribersByTopic.remove(topic);
+            subscriber.bindTopic(id, topic);
+            return MessageCodec.encodeFrame(MessageCodec.FRAME_MESSAGE, id, payload);
+        }
+        byte[] prefix = ("[TOPIC:" + topic + "] [PUBLISHER " + publisherInfo + "]: ").getBytes(StandardCharsets.UTF_8);
+        return MessageCodec.encodeLine(prefix, payload);
+    }
+
+    // Log of a topic that has been persisted, or null
+    TopicLog getTopicLog(String topic) {
+        return logStore != null ? logStore.existing(topic) : null;
+    }
+
+    boolean isPersistent() {
+        return logStore != null;
+    }
+
+    void startReplay(ClientHandler subscriber, TopicLog log, long from) {
+        threadPool.execute(new LogReplay(this, subscriber, log, from));
+    }
+
+    // Id that binary frames use for a live topic, or 0 if no client or
+    // history holds it
+    public int topicId(String topic) {
+        Topic entry = topicTable.get(topic);
+        return entry != null ? entry.id : 0;
+    }
+
+    // Live topic by its binary id; an array index, for the publish path
+    Topic topic(int id) {
+        return topicTable.get(id);
+    }
+
+    // Take a reference on a topic or pattern, interning it to an id if it is
+    // new. Returns null if the topic table is full. Registering hands the
+    // reference over to the registration, and unregistering drops it; the
+    // last one to go frees the id.
+    Topic acquireTopic(String name) {
+        return topicTable.acquire(name);
+    }
+
+    void releaseTopic(String name) {
+        topicTable.release(name);
+    }
+
+    // Register client as publisher for a specific topic, at most once per
+    // topic; takes over a reference from acquireTopic()
+    public void registerPublisher(ClientHandler client, Topic topic) {
+        int publishers = publishersByTopic.add(topic.name, client);
+        metrics.publisherAdded(topic.name);
+        Log.info("Publisher registered for topic '" + topic + "'. Total publishers on this topic: " +
+                publishers);
+    }
+
+    // Register client as subscriber for a topic or pattern, at most once per
+    // subscription; takes over a reference from acquireTopic(). Once it is
+    // registered, acknowledge runs (to queue the BIND and welcome), so a
+    // client that acts on the BIND is already receiving the topic. With
+    // sendHistory, a topic's recent messages are queued to it next (unless
+    // another of its subscriptions already delivers that topic to it).
+    public void registerSubscriber(ClientHandler client, Topic subscription, boolean sendHistory,
+            Runnable acknowledge) {
+        String topic = subscription.name;
+        TopicHistory history = sendHistory ? history(subscription) : null;
+        int subscribers;
+        int replayed = 0;
+        if (history == null) {
+            subscribers = subscribersByTopic.add(topic, client);
+            acknowledge.run();
+        } else {
+            // Publishes to the topic wait on this lock, so none lands between
+            // the replay and the first live message
+            synchronized (history) {
+                boolean receiving = Arrays.asList(subscribersByTopic.match(subscription)).contains(client);
+                subscribers = subscribersByTopic.add(topic, client);
+                acknowledge.run();
+                if (!receiving) {
+                    replayed = history.replayTo(client);
                 }
             }
         }
+        metrics.subscriberAdded(topic);
+        Log.info("Subscriber registered for topic '" + topic + "'. Total subscribers on this topic: " +
+                subscribers + (replayed > 0 ? ", sent " + replayed + " recent messages" : ""));
+    }
+
+    // Add client to a consumer group on a topic or pattern; takes over a
+    // reference from acquireTopic(). Returns false if it was already a member.
+    public boolean joinGroup(ClientHandler client, Topic subscription, String group) {
+        int members = consumerGroups.join(subscription.name, group, client);
+        if (members == 0) {
+            topicTable.release(subscription.name);
+            return false;
+        }
+        metrics.subscriberAdded(subscription.name);
+        Log.info("Subscriber joined group '" + group + "' on topic '" + subscription + "'. Members: " + members);
+        return true;
+    }
+
+    public void unregisterPublisher(ClientHandler client, String topic) {
+        if (publishersByTopic.remove(topic, client)) {
+            metrics.publisherRemoved(topic);
+            topicTable.release(topic);
+        }
+    }
+
+    // A subscription is a topic or pattern, or a group membership as listed
+    // by ConsumerGroups.key()
+    public void unregisterSubscriber(ClientHandler client, String subscription) {
+        String[] group = ConsumerGroups.parse(subscription);
+        if (group != null) {
+            if (consumerGroups.leave(group[0], group[1], client)) {
+                metrics.subscriberRemoved(group[0]);
+                topicTable.release(group[0]);
+            }
+            return;
+        }
+        if (subscribersByTopic.remove(subscription, client)) {
+            metrics.subscriberRemoved(subscription);
+            topicTable.release(subscription);
+        }
+    }
+
+    // Remove client from all collections, for every topic it used
+    public void removeClient(ClientHandler client) {
+        for (String topic : client.getPublishTopics()) {
+            unregisterPublisher(client, topic);
+        }
+        for (String subscription : client.getSubscriptions()) {
+            unregisterSubscriber(client, subscription);
+        }
 
         allClients.remove(client);
-        System.out.println("Client removed from topic '" + topic + "'");
-        displayTopicStatistics();
+        Log.info("Client " + client.getClientInfo() + " removed from its topics");
     }
 
-    // Display current topic statistics
-    private void displayTopicStatistics() {
-        System.out.println("=== CURRENT TOPIC STATISTICS ===");
-        System.out
-                .println("Active Topics: " + (publishersByTopic.keySet().size() + subscribersByTopic.keySet().size()));
+    // Snapshot of the topic counters, served by the STATS command and the
+    // --stats-interval sampler rather than printed on every change
+    public String getStatistics() {
+        StringBuilder stats = new StringBuilder();
+        stats.append("=== CURRENT TOPIC STATISTICS ===\n");
+        stats.append("Active Topics: ").append(metrics.activeTopics()).append('\n');
+
+        for (Map.Entry<String, TopicMetrics> entry : metrics.topics().entrySet()) {
+            stats.append("  Topic '").append(entry.getKey()).append("': ").append(entry.getValue().describe())
+                    .append('\n');
+            appendLaggingSubscribers(stats, entry.getKey());
+        }
+        for (ConsumerGroup group : consumerGroups.groups()) {
+            appendGroup(stats, group);
+        }
+        stats.append("Total clients: ").append(allClients.size()).append('\n');
+        DispatcherGroup group = dispatchers;
+        if (group != null) {
+            stats.append("Dispatchers: ").append(group.size()).append(", ").append(group.queuedMessages())
+                    .append(" messages queued\n");
+        }
+        long messages = metrics.messagesWritten();
+        if (messages > 0) {
+            long writes = metrics.socketWrites();
+            stats.append("Socket writes: ").append(writes).append(" for ").append(messages).append(" messages (")
+                    .append(String.format("%.3f", (double) writes / messages)).append(" per message)\n");
+        }
+        stats.append("================================");
+        return stats.toString();
+    }
 
-        Set<String> allTopics = new HashSet<>();
-        allTopics.addAll(publishersByTopic.keySet());
-        allTopics.addAll(subscribersByTopic.keySet());
+    // Show outbound queue depth and drop counts for subscribers that are behind
+    private void appendLaggingSubscribers(StringBuilder stats, String topic) {
+        for (ClientHandler subscriber : subscribersByTopic.get(topic)) {
+            long credit = subscriber.getCredit();
+            if (subscriber.getQueueDepth() > 0 || subscriber.getDroppedMessages() > 0 || credit >= 0) {
+                stats.append("    Subscriber ").append(subscriber.getClientInfo()).append(": queue ")
+                        .append(subscriber.getQueueDepth()).append('/').append(subscriber.getQueueCapacity())
+                        .append(", dropped ").append(subscriber.getDroppedMessages());
+                if (credit >= 0) {
+                    stats.append(", credit ").append(credit);
+                }
+                stats.append('\n');
+            }
+        }
+    }
 
-        for (String topic : allTopics) {
-            int publishers = publishersByTopic.getOrDefault(topic, Collections.emptySet()).size();
-            int subscribers = subscribersByTopic.getOrDefault(topic, Collections.emptySet()).size();
-            System.out
-                    .println("  Topic '" + topic + "': " + publishers + " publishers, " + subscribers + " subscribers");
+    // Group size, deliveries so far and how far behind each member is
+    private static void appendGroup(StringBuilder stats, ConsumerGroup group) {
+        ClientHandler[] members = group.members;
+        stats.append("  Group '").append(group.name).append("' on '").append(group.subscription).append("': ")
+                .append(members.length).append(" members, ").append(group.delivered.sum()).append(" delivered\n");
+        for (ClientHandler member : members) {
+            stats.append("    Member ").append(member.getClientInfo()).append(": queue ")
+                    .append(member.getQueueDepth()).append('/').append(member.getQueueCapacity()).append('\n');
         }
-        System.out.println("Total clients: " + allClients.size());
-        System.out.println("================================");
     }
 
-    // Get list of available topics
+    // Get list of available topics (a live view, not a copy)
     public Set<String> getAvailableTopics() {
-        Set<String> allTopics = new HashSet<>();
-        allTopics.addAll(publishersByTopic.keySet());
-        allTopics.addAll(subscribersByTopic.keySet());
-        return allTopics;
+        return Collections.unmodifiableSet(metrics.topics().keySet());
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java Server <port>");
+        if (args.length < 1) {
+            System.err.println("Usage: java Server <port> [options]");
+            ServerConfig.printOptions();
+            System.exit(1);
+        }
+
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.parse(args, 1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            ServerConfig.printOptions();
             System.exit(1);
         }
 
         try {
             int port = Integer.parseInt(args[0]);
-            Server server = new Server(port);
+            Log.setLevel(config.getLogLevel());
+            Server server = new Server(port, config);
 
             // Add shutdown hook for graceful termination
             Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
@@ -197,122 +886,1051 @@ public class Server {
 // ClientHandler class to handle individual client connections with topic
 // support
 class ClientHandler implements Runnable {
+    private static final int INITIAL_INPUT_BUFFER = 8192;
+
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Server server;
+    private InputStream in;
+    private OutputStream out;
+    protected final Server server;
+    protected final OutboundQueue outbound;
+    private volatile Future<?> writerTask;
+    // Bytes read from the client but not yet decoded; kept in write mode
+    protected ByteBuffer inputBuffer = ByteBuffer.allocate(INITIAL_INPUT_BUFFER);
+    private volatile boolean binary = false;
+    // Topic ids this binary client has been sent a BIND for
+    private final Set<Integer> boundTopicIds = ConcurrentHashMap.newKeySet();
+    // Any number of subscriptions (exact or wildcard) per connection
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+    // Topics a publisher may send to
+    private final Map<String, Publication> publishTopics = new ConcurrentHashMap<>();
+    // A publisher's handshake topic, where its plain lines go
+    private Publication handshakePublication;
+    // Set by a MULTI handshake: the publisher's "PUBLISH <topic> <message>"
+    // lines go to other topics. Without it every line but "terminate" is a
+    // message for the handshake topic.
+    private boolean multiTopic = false;
+    // A publisher's messages decoded from one read, up to MAX_BATCH on one
+    // topic, routed together (see publishBatch); allocated on first use
+    static final int MAX_BATCH = 256;
+    private PooledBuffer[] batch;
+    private int batchCount = 0;
+    private Publication batchPublication;
+    // Dispatcher whose queue the last publish filled; input stops being
+    // processed until it drains (see backOff)
+    private Dispatcher stalled;
+    // Frames the client still allows us to write; UNLIMITED until it first
+    // grants credit, which turns on flow control for the connection
+    private static final long UNLIMITED = -1;
+    private final AtomicLong credit = new AtomicLong(UNLIMITED);
+    // Blocking writer parked waiting for credit
+    private volatile Thread creditWaiter;
+    // Subscriptions still being caught up from the log; live broadcasts skip them
+    private final Set<String> replayingTopics = ConcurrentHashMap.newKeySet();
+    private static final Pattern FROM_CLAUSE = Pattern.compile("(.*\\S)\\s+FROM\\s+(\\S+)",
+            Pattern.CASE_INSENSITIVE);
+    // Set once the connection should close as soon as its queue is written
+    private volatile boolean closing = false;
+    private String requestedType;
     private String clientType;
     private String topic;
-    private String clientInfo;
-    private boolean connected = true;
+    protected String clientInfo;
+    protected volatile boolean connected = true;
+    private boolean disconnected = false;
 
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = newOutboundQueue(server);
         try {
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(socket.getOutputStream(), true);
-            this.clientInfo = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+            this.clientInfo = socket instanceof UnixSocket ? socket.toString()
+                    : socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
         } catch (IOException e) {
-            System.err.println("Error setting up client handler: " + e.getMessage());
+            Log.error("Error setting up client handler: " + e.getMessage());
             disconnect();
         }
     }
 
+    // For transports that do their own I/O and feed it through processInput()
+    protected ClientHandler(Server server, String clientInfo) {
+        this.server = server;
+        this.outbound = newOutboundQueue(server);
+        this.clientInfo = clientInfo;
+    }
+
+    private static OutboundQueue newOutboundQueue(Server server) {
+        ServerConfig config = server.getConfig();
+        return new OutboundQueue(config.getQueueCapacity(), config.getOverflowPolicy());
+    }
+
     @Override
     public void run() {
         try {
-            System.out.println("New client connected from: " + clientInfo);
+            onConnected();
 
-            // First message should be the client type (PUBLISHER or SUBSCRIBER)
-            String firstMessage = in.readLine();
-            if (firstMessage == null) {
-                disconnect();
-                return;
+            // Listen for messages from client
+            while (connected) {
+                int read = in.read(inputBuffer.array(), inputBuffer.arrayOffset() + inputBuffer.position(),
+                        inputBuffer.remaining());
+                if (read < 0) {
+                    break;
+                }
+                inputBuffer.position(inputBuffer.position() + read);
+                if (!processInput()) {
+                    break;
+                }
             }
 
-            // Second message should be the topic
-            String topicMessage = in.readLine();
-            if (topicMessage == null) {
-                disconnect();
-                return;
+        } catch (IOException e) {
+            Log.error("Error handling client " + clientInfo + ": " + e.getMessage());
+        } finally {
+            disconnect();
+        }
+    }
+
+    protected void onConnected() {
+        Log.info("New client connected from: " + clientInfo);
+    }
+
+    // Decode every complete line or frame in inputBuffer, leaving any partial
+    // one for the next read. Returns false once the connection should close.
+    protected boolean processInput() {
+        boolean paused = false;
+        inputBuffer.flip();
+        try {
+            while (connected) {
+                if (stalled != null && !backOff(takeStalled())) {
+                    paused = true;
+                    break;
+                }
+                // A registered publisher's messages go straight from the
+                // input buffer into a pooled frame; everything else is
+                // decoded and handled below
+                boolean publishing = handshakePublication != null && !closing;
+                if (binary) {
+                    int length = MessageCodec.frameLength(inputBuffer);
+                    if (length < 0) {
+                        break;
+                    }
+                    byte type = inputBuffer.get(inputBuffer.position());
+                    if (publishing && type == MessageCodec.FRAME_MESSAGE) {
+                        publishFrame(length);
+                        continue;
+                    }
+                    if (publishing && type == MessageCodec.FRAME_PUBLISH_BATCH) {
+                        if (!publishBatchFrame(length)) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    // Anything else is handled after the messages before it
+                    publishBatch();
+                    if (!handleFrame(MessageCodec.decodeFrame(inputBuffer))) {
+                        return false;
+                    }
+                } else {
+                    int newline = MessageCodec.lineEnd(inputBuffer);
+                    if (newline < 0) {
+                        break;
+                    }
+                    if (publishing && !isPublisherCommand(inputBuffer, newline, multiTopic)) {
+                        publishLine(newline);
+                        continue;
+                    }
+                    publishBatch();
+                    if (!handleLine(MessageCodec.decodeLine(inputBuffer))) {
+                        return false;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Error handling client " + clientInfo + ": " + e.getMessage());
+            return false;
+        } finally {
+            publishBatch();
+            inputBuffer.compact();
+        }
+        if (stalled != null && !paused) {
+            paused = !backOff(takeStalled());
+        }
+
+        // A partial line or frame fills the buffer: make room for the rest.
+        // Paused, it may hold whole messages left for when input resumes.
+        if (!paused && !inputBuffer.hasRemaining()) {
+            if (inputBuffer.capacity() >= MessageCodec.HEADER_LENGTH + MessageCodec.MAX_PAYLOAD) {
+                Log.warn("Message from " + clientInfo + " exceeds " + MessageCodec.MAX_PAYLOAD + " bytes");
+                return false;
             }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(inputBuffer.capacity() * 2,
+                    MessageCodec.HEADER_LENGTH + MessageCodec.MAX_PAYLOAD));
+            inputBuffer.flip();
+            larger.put(inputBuffer);
+            inputBuffer = larger;
+        }
+        return true;
+    }
+
+    private void stall(Dispatcher full) {
+        if (full != null) {
+            stalled = full;
+        }
+    }
+
+    private Dispatcher takeStalled() {
+        Dispatcher full = stalled;
+        stalled = null;
+        return full;
+    }
 
-            this.topic = topicMessage.trim();
+    // A publish filled the queue of the dispatcher routing it. Returns true
+    // once input may be processed again; false leaves the rest of the input
+    // buffered, for the transport to resume with processInput() once the
+    // dispatcher has drained. A thread of its own waits here for it.
+    protected boolean backOff(Dispatcher dispatcher) {
+        Thread waiter = Thread.currentThread();
+        AtomicBoolean drained = new AtomicBoolean();
+        dispatcher.whenDrained(() -> {
+            drained.set(true);
+            LockSupport.unpark(waiter);
+        });
+        // Not hasRoom(): other publishers may have refilled the queue since
+        while (!drained.get()) {
+            LockSupport.park(this);
+        }
+        return true;
+    }
 
-            if ("PUBLISHER".equalsIgnoreCase(firstMessage)) {
-                clientType = "PUBLISHER";
-                server.registerPublisher(this, topic);
-                System.out.println("Client " + clientInfo + " registered as PUBLISHER for topic: " + topic);
-            } else if ("SUBSCRIBER".equalsIgnoreCase(firstMessage)) {
-                clientType = "SUBSCRIBER";
-                server.registerSubscriber(this, topic);
-                System.out.println("Client " + clientInfo + " registered as SUBSCRIBER for topic: " + topic);
-                sendMessage("Welcome! You are now subscribed to topic: " + topic);
+    // Process one line from the client. The first two lines are the handshake
+    // (client type, then topic); everything after is a message. A first line
+    // of BINARY switches the connection to binary frames instead, and one of
+    // MULTI registers a publisher that may also use PUBLISH commands.
+    protected boolean handleLine(String line) {
+        if (closing) {
+            return true;
+        }
 
-                // Send available topics info
-                Set<String> availableTopics = server.getAvailableTopics();
-                if (availableTopics.size() > 1) {
-                    sendMessage("Available topics: " + String.join(", ", availableTopics));
+        // First message should be the client type (PUBLISHER or SUBSCRIBER)
+        if (requestedType == null) {
+            if ("STATS".equalsIgnoreCase(line)) {
+                // Control connection: reply with a snapshot and hang up
+                for (String statsLine : server.getStatistics().split("\n")) {
+                    sendMessage(statsLine);
                 }
-            } else {
-                System.err.println("Invalid client type from " + clientInfo + ": " + firstMessage);
-                disconnect();
-                return;
+                closeAfterFlush();
+                return true;
+            }
+            if (MessageCodec.BINARY_HANDSHAKE.equalsIgnoreCase(line)) {
+                binary = true;
             }
+            requestedType = line;
+            return true;
+        }
 
-            // Listen for messages from client
-            String message;
-            while (connected && (message = in.readLine()) != null) {
-                if ("terminate".equals(message)) {
-                    System.out.println(clientType + " " + clientInfo + " (topic: " + topic + ") requested termination");
-                    break;
-                }
+        // Credit may be granted before the topic line, so even the first
+        // messages after registration are paced. Only subscribers are paced:
+        // a registered publisher's line starting with "CREDIT " is a message
+        if ((clientType == null || "SUBSCRIBER".equals(clientType)) && startsWithCommand(line, "CREDIT ")) {
+            try {
+                grantCredit(Integer.parseInt(line.substring("CREDIT ".length()).trim()));
+            } catch (NumberFormatException e) {
+                sendMessage("Invalid credit: " + line.substring("CREDIT ".length()));
+            }
+            return true;
+        }
+
+        // Second message should be the topic
+        if (clientType == null) {
+            return register(requestedType, line);
+        }
+
+        if ("terminate".equals(line)) {
+            Log.info(clientType + " " + clientInfo + " (topic: " + topic + ") requested termination");
+            return false;
+        }
+
+        if (Log.isDebugEnabled()) {
+            Log.debug(clientType + " " + clientInfo + " (topic: " + topic + "): " + line);
+        }
+
+        // In-band commands let one connection hold many topics
+        if ("SUBSCRIBER".equals(clientType)) {
+            if (startsWithCommand(line, "SUBSCRIBE ")) {
+                subscribe(line.substring("SUBSCRIBE ".length()));
+            } else if (startsWithCommand(line, "UNSUBSCRIBE ")) {
+                unsubscribe(line.substring("UNSUBSCRIBE ".length()));
+            }
+            return true;
+        }
 
-                System.out.println(clientType + " " + clientInfo + " (topic: " + topic + "): " + message);
+        // A publisher's plain lines go to its handshake topic
+        if (multiTopic && startsWithCommand(line, "PUBLISH ")) {
+            String rest = line.substring("PUBLISH ".length()).trim();
+            int space = rest.indexOf(' ');
+            Publication target = addPublishTopic(space < 0 ? rest : rest.substring(0, space));
+            if (target != null) {
+                stall(server.broadcastToTopicSubscribers(space < 0 ? "" : rest.substring(space + 1), target));
+            }
+        } else {
+            stall(server.broadcastToTopicSubscribers(line, handshakePublication));
+        }
+        return true;
+    }
+
+    private static boolean startsWithCommand(String line, String command) {
+        return line.regionMatches(true, 0, command, 0, command.length());
+    }
+
+    // Whether a publisher's line (ending at newline) is one handleLine()
+    // must see rather than a message
+    private static boolean isPublisherCommand(ByteBuffer input, int newline, boolean multiTopic) {
+        int start = input.position();
+        int end = lineContentEnd(input, newline);
+        return (multiTopic && regionMatches(input, start, end, "PUBLISH ", true))
+                || (end - start == "terminate".length() && regionMatches(input, start, end, "terminate", false));
+    }
+
+    // Byte-level String.regionMatches at the start of a line; commands are ASCII
+    private static boolean regionMatches(ByteBuffer input, int start, int end, String text, boolean ignoreCase) {
+        if (end - start < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = (char) (input.get(start + i) & 0xFF);
+            if (c != text.charAt(i) && !(ignoreCase && Character.toUpperCase(c) == text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // End of a line's content, without its "\r\n" or "\n"
+    private static int lineContentEnd(ByteBuffer input, int newline) {
+        return newline > input.position() && input.get(newline - 1) == '\r' ? newline - 1 : newline;
+    }
+
+    // One plain line from a registered text publisher, for its handshake topic
+    private void publishLine(int newline) {
+        ByteBuffer input = inputBuffer;
+        int start = input.position();
+        int end = lineContentEnd(input, newline);
+        input.position(newline + 1);
+        if (Log.isDebugEnabled()) {
+            Log.debug(clientType + " " + clientInfo + " (topic: " + topic + "): "
+                    + StandardCharsets.UTF_8.decode(input.slice(start, end - start)));
+        }
+        addToBatch(copyMessage(input, start, end - start), handshakePublication);
+    }
+
+    // One MESSAGE frame of the given total length from a binary publisher
+    private void publishFrame(int length) {
+        ByteBuffer input = inputBuffer;
+        int start = input.position();
+        input.position(start + length);
+        Publication from = publication(input.getInt(start + 2));
+        if (from == null) {
+            return;
+        }
+        int payloadLength = length - MessageCodec.HEADER_LENGTH;
+        if (Log.isDebugEnabled()) {
+            Log.debug(clientType + " " + clientInfo + " (topic: " + from.topic + "): " + payloadLength + " bytes");
+        }
+        addToBatch(copyMessage(input, start + MessageCodec.HEADER_LENGTH, payloadLength), from);
+    }
+
+    // A PUBLISH_BATCH frame of the given total length: each [length:4][bytes]
+    // entry is published as one message. Returns false if an entry overruns
+    // the frame, which ends the connection.
+    private boolean publishBatchFrame(int length) {
+        ByteBuffer input = inputBuffer;
+        int start = input.position();
+        int end = start + length;
+        input.position(end);
+        Publication from = publication(input.getInt(start + 2));
+        if (from == null) {
+            return true;
+        }
+        int messages = 0;
+        for (int entry = start + MessageCodec.HEADER_LENGTH; entry < end; messages++) {
+            int entryLength = end - entry >= 4 ? input.getInt(entry) : -1;
+            entry += 4;
+            if (entryLength < 0 || entryLength > end - entry) {
+                Log.warn("Malformed batch from " + clientInfo + " on topic '" + from.topic + "'");
+                return false;
+            }
+            addToBatch(copyMessage(input, entry, entryLength), from);
+            entry += entryLength;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug(clientType + " " + clientInfo + " (topic: " + from.topic + "): batch of " + messages);
+        }
+        return true;
+    }
 
-                // If it's a publisher, broadcast to subscribers of the same topic
+    // The publisher's registration of a topic id from a frame; the id indexes
+    // straight into the topic table. A topic this client has not registered,
+    // or a dead one, is refused.
+    private Publication publication(int id) {
+        Topic target = server.topic(id);
+        Publication from = target != null ? publishTopics.get(target.name) : null;
+        if (from == null || from.topic != target) {
+            sendMessage("Not registered for topic id " + id);
+            return null;
+        }
+        return from;
+    }
+
+    // A payload copied out of the input buffer into a pooled MESSAGE frame,
+    // whose header routing fills in
+    private PooledBuffer copyMessage(ByteBuffer input, int offset, int length) {
+        PooledBuffer frame = server.bufferPool().allocate(MessageCodec.HEADER_LENGTH + length);
+        frame.buffer().put(MessageCodec.HEADER_LENGTH, input, offset, length);
+        return frame;
+    }
+
+    private void addToBatch(PooledBuffer frame, Publication from) {
+        if (batchCount > 0 && (from != batchPublication || batchCount == MAX_BATCH)) {
+            publishBatch();
+        }
+        if (batch == null) {
+            batch = new PooledBuffer[MAX_BATCH];
+        }
+        batch[batchCount++] = frame;
+        batchPublication = from;
+    }
+
+    // Route the messages decoded so far in one pass (Server.route for a
+    // batch), before anything else from the client is handled and before
+    // waiting for the next read
+    private void publishBatch() {
+        if (batchCount == 0) {
+            return;
+        }
+        stall(server.broadcastFrames(batch, batchCount, batchPublication));
+        Arrays.fill(batch, 0, batchCount, null);
+        batchCount = 0;
+        batchPublication = null;
+    }
+
+    // Binary counterpart of handleLine(): the first frame registers the client,
+    // later MESSAGE frames are routed without decoding their payload
+    protected boolean handleFrame(MessageCodec.Frame frame) {
+        if (closing) {
+            return true;
+        }
+        if (frame.type == MessageCodec.FRAME_CREDIT) {
+            if (frame.payload.length != 4) {
+                Log.warn("Invalid credit frame from " + clientInfo);
+                return false;
+            }
+            grantCredit(ByteBuffer.wrap(frame.payload).getInt());
+            return true;
+        }
+        if (clientType == null) {
+            if (frame.type == MessageCodec.FRAME_PUBLISHER) {
+                return register("PUBLISHER", frame.payloadText());
+            } else if (frame.type == MessageCodec.FRAME_SUBSCRIBER) {
+                return register("SUBSCRIBER", frame.payloadText());
+            }
+            Log.warn("Invalid registration frame from " + clientInfo + ": type " + frame.type);
+            return false;
+        }
+
+        switch (frame.type) {
+            case MessageCodec.FRAME_TERMINATE:
+                Log.info(clientType + " " + clientInfo + " (topic: " + topic + ") requested termination");
+                return false;
+            case MessageCodec.FRAME_MESSAGE:
+            case MessageCodec.FRAME_PUBLISH_BATCH:
+                // A publisher's are routed by publishFrame() and
+                // publishBatchFrame() before getting here; anyone else's are
+                // ignored
+                return true;
+            case MessageCodec.FRAME_PUBLISHER:
+                // Another topic for this publisher; answered with its BIND
                 if ("PUBLISHER".equals(clientType)) {
-                    server.broadcastToTopicSubscribers(message, clientInfo, topic);
+                    addPublishTopic(frame.payloadText());
+                }
+                return true;
+            case MessageCodec.FRAME_SUBSCRIBE:
+                if ("SUBSCRIBER".equals(clientType)) {
+                    subscribe(frame.payloadText());
+                }
+                return true;
+            case MessageCodec.FRAME_UNSUBSCRIBE:
+                if ("SUBSCRIBER".equals(clientType)) {
+                    unsubscribe(frame.payloadText());
+                }
+                return true;
+            default:
+                Log.warn("Unexpected frame from " + clientInfo + ": type " + frame.type);
+                return true;
+        }
+    }
+
+    // Second handshake step, shared by both protocols
+    private boolean register(String type, String topicName) {
+        this.topic = topicName.trim();
+
+        if ("PUBLISHER".equalsIgnoreCase(type) || MessageCodec.MULTI_HANDSHAKE.equalsIgnoreCase(type)) {
+            clientType = "PUBLISHER";
+            multiTopic = MessageCodec.MULTI_HANDSHAKE.equalsIgnoreCase(type);
+            handshakePublication = addPublishTopic(topic);
+            if (handshakePublication == null) {
+                closeAfterFlush();
+                return true;
+            }
+            Log.info("Client " + clientInfo + " registered as " + (multiTopic ? "multi-topic " : "")
+                    + "PUBLISHER for topic: " + topic);
+        } else if ("SUBSCRIBER".equalsIgnoreCase(type)) {
+            clientType = "SUBSCRIBER";
+            if (subscribe(topic) == 0) {
+                closeAfterFlush();
+                return true;
+            }
+            Log.info("Client " + clientInfo + " registered as SUBSCRIBER for topic: " + topic);
+
+            // Send available topics info
+            Collection<String> availableTopics = server.getAvailableTopics();
+            if (availableTopics.size() > 1) {
+                sendMessage("Available topics: " + String.join(", ", availableTopics));
+            }
+        } else {
+            Log.warn("Invalid client type from " + clientInfo + ": " + type);
+            return false;
+        }
+        return true;
+    }
+
+    // Publishers name concrete topics; subscribers may use '*' and '#'.
+    // Returns null if the topic is usable, otherwise after telling the client.
+    private String rejectTopic(String name, boolean publishing) {
+        String invalid;
+        if (name.isEmpty()) {
+            invalid = "topic cannot be empty";
+        } else if (!TopicTrie.isPattern(name)) {
+            return null;
+        } else if (publishing) {
+            invalid = "publishers cannot use wildcards";
+        } else {
+            invalid = TopicTrie.validate(name);
+            if (invalid == null) {
+                return null;
+            }
+        }
+        Log.warn("Rejected topic '" + name + "' from " + clientInfo + ": " + invalid);
+        sendMessage("Invalid topic: " + invalid);
+        return invalid;
+    }
+
+    // Add a subscription; returns its topic id, or 0 if it was rejected.
+    // "<topic> FROM <offset>" or "<topic> FROM EARLIEST" also replays the
+    // topic's log from there before going live (needs --persist-dir).
+    // "<topic> GROUP <name>" joins a consumer group instead, sharing the
+    // topic's messages with the group's other members.
+    private int subscribe(String request) {
+        String subscription = request.trim();
+        String group = null;
+        String[] groupClause = ConsumerGroups.parse(subscription);
+        if (groupClause != null) {
+            subscription = groupClause[0];
+            group = groupClause[1];
+        }
+        String from = null;
+        String[] fromClause = parseFrom(subscription);
+        if (fromClause != null) {
+            subscription = fromClause[0];
+            from = fromClause[1];
+        }
+        if (rejectTopic(subscription, false) != null) {
+            return 0;
+        }
+        if (group != null) {
+            if (from != null) {
+                Log.warn("Rejected replay of '" + subscription + "' for " + clientInfo + ": consumer group");
+                sendMessage("Cannot replay: consumer groups only receive live messages");
+                return 0;
+            }
+            return joinGroup(subscription, group);
+        }
+
+        TopicLog log = null;
+        long fromOffset = 0;
+        if (from != null) {
+            String invalid = null;
+            if (!server.isPersistent()) {
+                invalid = "the server is not persisting topics";
+            } else if (TopicTrie.isPattern(subscription)) {
+                invalid = "replay needs a concrete topic";
+            } else if (!"EARLIEST".equalsIgnoreCase(from)) {
+                try {
+                    fromOffset = Long.parseLong(from);
+                } catch (NumberFormatException e) {
+                    fromOffset = -1;
+                }
+                if (fromOffset < 0) {
+                    invalid = "offset must be a non-negative number or EARLIEST";
+                }
+            }
+            if (invalid != null) {
+                Log.warn("Rejected replay of '" + subscription + "' for " + clientInfo + ": " + invalid);
+                sendMessage("Cannot replay: " + invalid);
+                return 0;
+            }
+            // Nothing logged yet means nothing to replay
+            log = server.getTopicLog(subscription);
+        }
+
+        Topic entry = acquireTopic(subscription);
+        if (entry == null) {
+            return 0;
+        }
+        if (log != null) {
+            // Before registering, so no live message can overtake the replay
+            replayingTopics.add(subscription);
+        }
+        if (subscriptions.add(subscription)) {
+            String subscribed = subscription;
+            TopicLog offsets = log != null ? log : server.getTopicLog(subscription);
+            // Welcome ahead of any recent history
+            server.registerSubscriber(this, entry, log == null, () -> {
+                sendBind(entry.id, subscribed);
+                sendMessage("Welcome! You are now subscribed to topic: " + subscribed);
+                if (offsets != null) {
+                    sendMessage("Topic " + subscribed + " log offsets: earliest " + offsets.earliestOffset()
+                            + ", next " + offsets.nextOffset());
+                }
+            });
+            if (log != null) {
+                long start = "EARLIEST".equalsIgnoreCase(from) ? log.earliestOffset() : fromOffset;
+                server.startReplay(this, log, start);
+            }
+        } else {
+            server.releaseTopic(subscription);
+            if (log != null) {
+                replayingTopics.remove(subscription);
+                sendMessage("Already subscribed to topic: " + subscription);
+            }
+        }
+        return entry.id;
+    }
+
+    // Subscription and offset of a "<subscription> FROM <offset>" request, or
+    // null if it asks for no replay. ClientConnection matches the BIND that
+    // answers a request against the subscription it returns.
+    static String[] parseFrom(String request) {
+        Matcher matcher = FROM_CLAUSE.matcher(request.trim());
+        return matcher.matches() ? new String[] { matcher.group(1), matcher.group(2) } : null;
+    }
+
+    // Join a consumer group on a topic or pattern; returns the topic id, or
+    // 0 if it was rejected. Members get no history: the group as a whole
+    // only shares live messages.
+    private int joinGroup(String subscription, String group) {
+        Topic entry = acquireTopic(subscription);
+        if (entry == null) {
+            return 0;
+        }
+        String key = ConsumerGroups.key(subscription, group);
+        if (subscriptions.add(key)) {
+            sendBind(entry.id, subscription);
+            sendMessage("Welcome! You are now subscribed to topic: " + subscription + " in group " + group);
+            server.joinGroup(this, entry, group);
+        } else {
+            server.releaseTopic(subscription);
+            sendMessage("Already subscribed to topic: " + subscription + " in group " + group);
+        }
+        return entry.id;
+    }
+
+    private void unsubscribe(String subscription) {
+        subscription = subscription.trim();
+        String[] group = ConsumerGroups.parse(subscription);
+        if (group != null) {
+            // Spelled the way subscriptions lists it
+            subscription = ConsumerGroups.key(group[0], group[1]);
+        }
+        // Also stops a replay still running for it
+        replayingTopics.remove(subscription);
+        if (subscriptions.remove(subscription)) {
+            server.unregisterSubscriber(this, subscription);
+            sendMessage("Unsubscribed from topic: " + subscription);
+        } else {
+            sendMessage("Not subscribed to topic: " + subscription);
+        }
+    }
+
+    // Add a topic this publisher may publish to; returns it, or null if it
+    // was rejected
+    private Publication addPublishTopic(String name) {
+        name = name.trim();
+        if (rejectTopic(name, true) != null) {
+            return null;
+        }
+        Publication existing = publishTopics.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        Topic entry = acquireTopic(name);
+        if (entry == null) {
+            return null;
+        }
+        Publication publication = new Publication(entry, clientInfo);
+        publishTopics.put(name, publication);
+        server.registerPublisher(this, entry);
+        sendBind(entry.id, name);
+        return publication;
+    }
+
+    // Intern a topic for this client; null (after telling it) if the server
+    // cannot take another topic
+    private Topic acquireTopic(String name) {
+        Topic entry = server.acquireTopic(name);
+        if (entry == null) {
+            Log.warn("Rejected topic '" + name + "' from " + clientInfo + ": too many topics");
+            sendMessage("Invalid topic: the server has too many topics");
+        }
+        return entry;
+    }
+
+    // Tell a binary client which id a topic travels under
+    private void sendBind(int id, String name) {
+        if (binary) {
+            synchronized (boundTopicIds) {
+                sendControl(MessageCodec.encodeFrame(MessageCodec.FRAME_BIND, id,
+                        name.getBytes(StandardCharsets.UTF_8)));
+                boundTopicIds.add(id);
+            }
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Current subscriptions; a live view
+    public Set<String> getSubscriptions() {
+        return subscriptions;
+    }
+
+    // Topics this publisher has published to or declared
+    public Collection<String> getPublishTopics() {
+        return publishTopics.keySet();
+    }
+
+    // Before a binary subscriber's first message on a concrete topic it was
+    // not bound to (one matched by a wildcard), send the BIND for that topic
+    // so it can tell its MESSAGE frames apart. The id is recorded only after
+    // the BIND is queued, so a concurrent publisher that sees it bound cannot
+    // queue its message ahead of the BIND.
+    void bindTopic(int id, String concreteTopic) {
+        if (boundTopicIds.contains(id)) {
+            return;
+        }
+        sendBind(id, concreteTopic);
+    }
+
+    // bindTopic() for the publish path, without boxing the id
+    void bindTopic(Topic concreteTopic) {
+        if (boundTopicIds.contains(concreteTopic.boxedId)) {
+            return;
+        }
+        sendBind(concreteTopic.id, concreteTopic.name);
+    }
+
+    public boolean sendMessage(String message) {
+        if (binary) {
+            return sendControl(MessageCodec.encodeFrame(MessageCodec.FRAME_INFO, 0,
+                    message.getBytes(StandardCharsets.UTF_8)));
+        }
+        return sendControl(MessageCodec.encodeLine(message));
+    }
+
+    // sendEncoded() for a control frame, which the overflow policy never
+    // drops (see OutboundQueue)
+    private boolean sendControl(ByteBuffer frame) {
+        return deliver(PooledBuffer.control(frame)) != OutboundQueue.Offer.REJECTED;
+    }
+
+    // Queue an already encoded frame for this client. Never blocks on the
+    // socket; returns false if the client is gone or was disconnected for
+    // falling behind.
+    public boolean sendEncoded(ByteBuffer frame) {
+        return deliver(PooledBuffer.wrap(frame)) != OutboundQueue.Offer.REJECTED;
+    }
+
+    // sendEncoded() for a shared frame, taking over one reference to it,
+    // that also reports whether the overflow policy dropped a message, for
+    // the topic counters
+    OutboundQueue.Offer deliver(PooledBuffer frame) {
+        if (!connected) {
+            frame.release();
+            return OutboundQueue.Offer.REJECTED;
+        }
+        OutboundQueue.Offer result = outbound.offer(frame);
+        if (result == OutboundQueue.Offer.REJECTED) {
+            Log.warn("Disconnecting slow subscriber " + clientInfo + ": outbound queue full ("
+                    + outbound.capacity() + " messages)");
+            abort();
+            return result;
+        }
+        onEnqueued();
+        return result;
+    }
+
+    // Close once everything queued so far has been written
+    protected void closeAfterFlush() {
+        closing = true;
+        // Empty frame wakes a writer already parked on an empty queue
+        outbound.offer(PooledBuffer.EMPTY);
+        onEnqueued();
+    }
+
+    protected boolean isClosing() {
+        return closing;
+    }
+
+    // Make sure something will drain the outbound queue. The blocking handler
+    // starts its writer on first use, so publishers never get one.
+    protected void onEnqueued() {
+        if (writerTask == null && out != null) {
+            synchronized (this) {
+                if (writerTask == null && !disconnected) {
+                    writerTask = server.startWriter(this::drainOutbound);
                 }
             }
+        }
+    }
+
+    // Writer loop: gather queued frames into one batch and write it with a
+    // single call once the queue is empty, the batch reaches --flush-bytes, or
+    // --flush-delay-us has passed since the first frame of the batch. Frames
+    // are copied into the batch, so each is released as soon as it is in.
+    private void drainOutbound() {
+        ServerConfig config = server.getConfig();
+        ByteBuffer batch = ByteBuffer.allocate(config.getFlushBytes());
+        long flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getFlushDelayMicros());
+        try {
+            while (connected) {
+                if (!hasCredit()) {
+                    awaitCredit();
+                    continue;
+                }
+                PooledBuffer frame = outbound.take();
+                useCredit();
+                long deadline = System.nanoTime() + flushDelayNanos;
+                int messages = 0;
+                int writeCalls = 0;
+
+                while (frame != null) {
+                    messages++;
+                    writeCalls += copyToBatch(frame, batch);
+                    frame.release();
+
+                    frame = pollWithCredit();
+                    if (frame == null && flushDelayNanos > 0 && hasCredit()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining > 0) {
+                            frame = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+                            if (frame != null) {
+                                useCredit();
+                            }
+                        }
+                    }
+                }
 
+                writeCalls += writeBatch(batch);
+                server.recordWrites(messages, writeCalls);
+                if (closing && outbound.size() == 0) {
+                    abort();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Cancelled by disconnect()
         } catch (IOException e) {
-            System.err.println("Error handling client " + clientInfo + ": " + e.getMessage());
+            abort();
+        }
+    }
+
+    // Append a frame to the batch, writing the batch out each time it
+    // fills up; returns the number of write calls made
+    private int copyToBatch(PooledBuffer frame, ByteBuffer batch) throws IOException {
+        int writeCalls = 0;
+        int length = frame.length();
+        for (int offset = 0; offset < length;) {
+            if (!batch.hasRemaining()) {
+                writeCalls += writeBatch(batch);
+            }
+            int chunk = Math.min(length - offset, batch.remaining());
+            frame.buffer().get(offset, batch.array(), batch.arrayOffset() + batch.position(), chunk);
+            batch.position(batch.position() + chunk);
+            offset += chunk;
+        }
+        return writeCalls;
+    }
+
+    // Returns the number of write calls made (0 or 1)
+    private int writeBatch(ByteBuffer batch) throws IOException {
+        if (batch.position() == 0) {
+            return 0;
+        }
+        out.write(batch.array(), 0, batch.position());
+        batch.clear();
+        return 1;
+    }
+
+    // Close the connection without touching the topic maps; used from inside a
+    // broadcast, where the reader side finishes the cleanup through disconnect()
+    protected void abort() {
+        connected = false;
+        try {
+            if (socket != null && !socket.isClosed())
+                socket.close();
+        } catch (IOException e) {
+            Log.error("Error disconnecting client " + clientInfo + ": " + e.getMessage());
+        }
+    }
+
+    public String getClientInfo() {
+        return clientInfo;
+    }
+
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    // Outstanding credit, or -1 if the client does not use flow control
+    public long getCredit() {
+        return credit.get();
+    }
+
+    // Allow n more frames to be written. The first grant switches the
+    // connection to flow control; queued frames wait, under the usual
+    // overflow policy, while the credit is used up.
+    protected void grantCredit(int n) {
+        if (n <= 0) {
+            return;
+        }
+        credit.getAndUpdate(current -> current == UNLIMITED ? n : Math.min(Long.MAX_VALUE - 1, current + n));
+        Thread waiter = creditWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        // Resume a writer that stopped for lack of credit
+        if (outbound.size() > 0) {
+            onEnqueued();
+        }
+    }
+
+    protected boolean hasCredit() {
+        return credit.get() != 0;
+    }
+
+    // Next queued frame if the client has credit for it; only the writer
+    // calls this, so the credit checked is still there when it is used
+    protected PooledBuffer pollWithCredit() {
+        if (!hasCredit()) {
+            return null;
+        }
+        PooledBuffer frame = outbound.poll();
+        if (frame != null) {
+            useCredit();
+        }
+        return frame;
+    }
+
+    private void useCredit() {
+        if (credit.get() != UNLIMITED) {
+            credit.decrementAndGet();
+        }
+    }
+
+    // Park the blocking writer until there is credit or the client is gone
+    private void awaitCredit() {
+        creditWaiter = Thread.currentThread();
+        try {
+            while (connected && !hasCredit()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
         } finally {
-            disconnect();
+            creditWaiter = null;
         }
     }
 
-    public boolean sendMessage(String message) {
-        if (out != null && connected) {
-            try {
-                out.println(message);
-                return !out.checkError();
-            } catch (Exception e) {
-                return false;
+    // Messages that can be queued before the overflow policy applies
+    public int getQueueRoom() {
+        return outbound.remainingCapacity();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    boolean isReplaying(String topic) {
+        return !replayingTopics.isEmpty() && replayingTopics.contains(topic);
+    }
+
+    void replayFinished(String topic) {
+        replayingTopics.remove(topic);
+    }
+
+    // Queue a frame, waiting for room instead of applying the overflow
+    // policy; used by replays, which must not lose messages. Returns false
+    // once the client is gone.
+    boolean deliverBlocking(ByteBuffer frame) throws InterruptedException {
+        PooledBuffer message = PooledBuffer.wrap(frame);
+        while (connected) {
+            if (outbound.offer(message, 100, TimeUnit.MILLISECONDS)) {
+                onEnqueued();
+                return true;
             }
         }
         return false;
     }
 
+    public int getQueueCapacity() {
+        return outbound.capacity();
+    }
+
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+
     public void disconnect() {
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+            if (writerTask != null) {
+                writerTask.cancel(true);
+            }
+        }
         connected = false;
-        if (clientType != null && topic != null) {
-            server.removeClient(this, clientType, topic);
+        replayingTopics.clear();
+        if (clientType != null) {
+            server.removeClient(this);
         }
 
+        closeConnection();
+        // Hand queued frames back to the pool
+        outbound.clear();
+
+        Log.info("Client " + clientInfo + " (" + clientType + ", topic: " + topic + ") disconnected");
+    }
+
+    protected void closeConnection() {
         try {
+            // Close the socket first so a thread blocked in readLine() lets go
+            if (socket != null && !socket.isClosed())
+                socket.close();
             if (in != null)
                 in.close();
             if (out != null)
                 out.close();
-            if (socket != null && !socket.isClosed())
-                socket.close();
         } catch (IOException e) {
-            System.err.println("Error disconnecting client " + clientInfo + ": " + e.getMessage());
+            Log.error("Error disconnecting client " + clientInfo + ": " + e.getMessage());
         }
-
-        System.out.println("Client " + clientInfo + " (" + clientType + ", topic: " + topic + ") disconnected");
     }
 }
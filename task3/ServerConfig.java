@@ -0,0 +1,424 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Startup options for the topic server, parsed from "--name=value" arguments
+// that follow the port on the command line
+public class ServerConfig {
+    // How client connections are serviced
+    public enum IoMode {
+        THREADS, // one blocking ClientHandler per pooled thread
+        VIRTUAL, // one blocking ClientHandler per virtual thread (Java 21+)
+        NIO // a few Selector event loops shared by all connections
+    }
+
+    // Which member of a consumer group gets each message
+    public enum GroupBalance {
+        ROUND_ROBIN, // members take turns
+        LEAST_QUEUED // the member with the fewest messages waiting to be written
+    }
+
+    // What a subscriber's outbound queue does when it is full
+    public enum OverflowPolicy {
+        DROP_OLDEST, // discard the oldest queued message to make room
+        DROP_NEWEST, // discard the message being published
+        DISCONNECT // disconnect the slow subscriber
+    }
+
+    private IoMode ioMode = IoMode.THREADS;
+    private int eventLoopThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int queueCapacity = 1024;
+    private int dispatcherThreads = 0;
+    private int dispatchQueueCapacity = 65536;
+    private int parallelFanOutThreshold = 0;
+    private int fanOutChunk = 1024;
+    private int fanOutThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private GroupBalance groupBalance = GroupBalance.ROUND_ROBIN;
+    private int flushBytes = 64 * 1024;
+    private int flushDelayMicros = 0;
+    private int bufferPoolMegabytes = 64;
+    private boolean directBuffers = true;
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private Log.Level logLevel = Log.Level.INFO;
+    private int statsIntervalSeconds = 0;
+    private String persistDir = null;
+    private int persistSegmentBytes = 64 * 1024 * 1024;
+    private int persistIndexBytes = 4096;
+    private int persistMaxSegments = 64;
+    private int persistFlushMillis = 1000;
+    private int persistFlushMessages = 0;
+    private int historySize = 0;
+    private int historyTopics = 1024;
+    private String shmDir = null;
+    private int shmMaxParkMicros = 50000;
+    private String unixSocketPath = null;
+    private final Map<String, Integer> topicHistorySizes = new HashMap<>();
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    // 0 routes each message on its publisher's thread
+    public int getDispatcherThreads() {
+        return dispatcherThreads;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    // Subscriber count from which a topic is fanned out in parallel; 0 = never
+    public int getParallelFanOutThreshold() {
+        return parallelFanOutThreshold;
+    }
+
+    public int getFanOutChunk() {
+        return fanOutChunk;
+    }
+
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public GroupBalance getGroupBalance() {
+        return groupBalance;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public int getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    // Memory kept for recycling message frames; 0 leaves them all to the GC
+    public long getBufferPoolBytes() {
+        return (long) bufferPoolMegabytes << 20;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    // 0 leaves the OS default
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    // 0 leaves the OS default
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    // Directory where same-host clients open shared-memory sessions; null
+    // when the transport is off
+    public String getShmDir() {
+        return shmDir;
+    }
+
+    // Longest a side waiting on a quiet shared-memory ring sleeps at a time
+    public int getShmMaxParkMicros() {
+        return shmMaxParkMicros;
+    }
+
+    // Unix domain socket path to listen on besides the TCP port; null if none
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    // 0 disables the periodic statistics log
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+
+    // Directory for the per-topic message logs; null disables persistence
+    public String getPersistDir() {
+        return persistDir;
+    }
+
+    public int getPersistSegmentBytes() {
+        return persistSegmentBytes;
+    }
+
+    // Log bytes between sparse index entries
+    public int getPersistIndexBytes() {
+        return persistIndexBytes;
+    }
+
+    // Segments kept per topic before the oldest is deleted; 0 keeps all
+    public int getPersistMaxSegments() {
+        return persistMaxSegments;
+    }
+
+    // 0 leaves flushing to the OS
+    public int getPersistFlushMillis() {
+        return persistFlushMillis;
+    }
+
+    // 0 disables flushing by message count
+    public int getPersistFlushMessages() {
+        return persistFlushMessages;
+    }
+
+    // Whether any topic keeps a last-N history
+    public boolean hasHistory() {
+        return historySize > 0 || !topicHistorySizes.isEmpty();
+    }
+
+    // Messages kept for late joiners on a topic; 0 keeps none
+    public int getHistorySize(String topic) {
+        Integer size = topicHistorySizes.get(topic);
+        return size != null ? size : historySize;
+    }
+
+    // Most topics that keep a history at once; see Server.history()
+    public int getHistoryTopics() {
+        return historyTopics;
+    }
+
+    // Parse options starting at args[from]; throws IllegalArgumentException on
+    // anything unrecognised so main() can print usage
+    public static ServerConfig parse(String[] args, int from) {
+        ServerConfig config = new ServerConfig();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            switch (name) {
+                case "io":
+                    config.ioMode = parseEnum(IoMode.class, name, value);
+                    break;
+                case "event-loops":
+                    config.eventLoopThreads = parsePositiveInt(name, value);
+                    break;
+                case "dispatchers":
+                    config.dispatcherThreads = "auto".equalsIgnoreCase(value.trim())
+                            ? Math.max(1, Runtime.getRuntime().availableProcessors())
+                            : parseNonNegativeInt(name, value);
+                    break;
+                case "dispatch-queue":
+                    config.dispatchQueueCapacity = parsePositiveInt(name, value);
+                    break;
+                case "parallel-fanout":
+                    config.parallelFanOutThreshold = parseNonNegativeInt(name, value);
+                    break;
+                case "fanout-chunk":
+                    config.fanOutChunk = parsePositiveInt(name, value);
+                    break;
+                case "fanout-threads":
+                    config.fanOutThreads = parsePositiveInt(name, value);
+                    break;
+                case "queue-capacity":
+                    config.queueCapacity = parsePositiveInt(name, value);
+                    break;
+                case "overflow":
+                    config.overflowPolicy = parseEnum(OverflowPolicy.class, name, value);
+                    break;
+                case "group-balance":
+                    config.groupBalance = parseEnum(GroupBalance.class, name, value);
+                    break;
+                case "flush-bytes":
+                    config.flushBytes = parsePositiveInt(name, value);
+                    break;
+                case "flush-delay-us":
+                    config.flushDelayMicros = parseNonNegativeInt(name, value);
+                    break;
+                case "buffer-pool-mb":
+                    config.bufferPoolMegabytes = parseNonNegativeInt(name, value);
+                    break;
+                case "direct-buffers":
+                    config.directBuffers = parseBoolean(name, value);
+                    break;
+                case "tcp-nodelay":
+                    config.tcpNoDelay = parseBoolean(name, value);
+                    break;
+                case "send-buffer":
+                    config.sendBufferSize = parseNonNegativeInt(name, value);
+                    break;
+                case "receive-buffer":
+                    config.receiveBufferSize = parseNonNegativeInt(name, value);
+                    break;
+                case "log-level":
+                    config.logLevel = parseEnum(Log.Level.class, name, value);
+                    break;
+                case "stats-interval":
+                    config.statsIntervalSeconds = parseNonNegativeInt(name, value);
+                    break;
+                case "persist-dir":
+                    if (value.trim().isEmpty()) {
+                        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                    }
+                    config.persistDir = value.trim();
+                    break;
+                case "persist-segment-bytes":
+                    config.persistSegmentBytes = parsePositiveInt(name, value);
+                    break;
+                case "persist-index-bytes":
+                    config.persistIndexBytes = parsePositiveInt(name, value);
+                    break;
+                case "persist-max-segments":
+                    config.persistMaxSegments = parseNonNegativeInt(name, value);
+                    break;
+                case "persist-flush-ms":
+                    config.persistFlushMillis = parseNonNegativeInt(name, value);
+                    break;
+                case "persist-flush-messages":
+                    config.persistFlushMessages = parseNonNegativeInt(name, value);
+                    break;
+                case "history":
+                    config.historySize = parseNonNegativeInt(name, value);
+                    break;
+                case "history-topics":
+                    config.historyTopics = parsePositiveInt(name, value);
+                    break;
+                case "unix-socket":
+                    if (value.trim().isEmpty()) {
+                        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                    }
+                    config.unixSocketPath = value.trim();
+                    break;
+                case "shm-dir":
+                    if (value.trim().isEmpty()) {
+                        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                    }
+                    config.shmDir = value.trim();
+                    break;
+                case "shm-max-park-us":
+                    config.shmMaxParkMicros = parsePositiveInt(name, value);
+                    break;
+                case "topic-history":
+                    for (String entry : value.split(",")) {
+                        int colon = entry.lastIndexOf(':');
+                        if (colon <= 0) {
+                            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                        }
+                        config.topicHistorySizes.put(entry.substring(0, colon).trim(),
+                                parseNonNegativeInt(name, entry.substring(colon + 1)));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+
+    public static void printOptions() {
+        System.err.println("Options:");
+        System.err.println("  --io=threads|virtual|nio  Blocking handler per pooled thread (default), per virtual");
+        System.err.println("                            thread, or Selector event loops");
+        System.err.println("  --event-loops=<n>         Event-loop threads in nio mode (default: CPU count)");
+        System.err.println("  --dispatchers=<n>|auto    Route each topic on one of n dispatcher threads; auto uses");
+        System.err.println("                            the CPU count (default: 0, route on the publisher's thread)");
+        System.err.println("  --dispatch-queue=<n>      Messages queued per dispatcher before publishers stop");
+        System.err.println("                            being read until it drains to half");
+        System.err.println("                            (default: 65536)");
+        System.err.println("  --parallel-fanout=<n>     Fan out to topics with at least n subscribers on a");
+        System.err.println("                            work-stealing pool (default: 0, off)");
+        System.err.println("  --fanout-chunk=<n>        Subscribers per parallel fan-out task (default: 1024)");
+        System.err.println("  --fanout-threads=<n>      Parallel fan-out pool size (default: CPU count)");
+        System.err.println("  --queue-capacity=<n>      Outbound messages buffered per subscriber (default: 1024)");
+        System.err.println("  --overflow=drop-oldest|drop-newest|disconnect");
+        System.err.println("                            What to do when a subscriber's queue is full (default: disconnect)");
+        System.err.println("  --group-balance=round-robin|least-queued");
+        System.err.println("                            Which consumer group member gets each message (default: round-robin)");
+        System.err.println("  --flush-bytes=<n>         Coalesce queued messages into writes of up to n bytes (default: 65536)");
+        System.err.println("  --flush-delay-us=<n>      Wait up to n microseconds for more messages before writing (default: 0)");
+        System.err.println("  --buffer-pool-mb=<n>      Memory for recycling message buffers (default: 64, 0 = off)");
+        System.err.println("  --direct-buffers=true|false  Keep message buffers off-heap (default: true)");
+        System.err.println("  --tcp-nodelay=true|false  Disable Nagle's algorithm on client sockets (default: true)");
+        System.err.println("  --send-buffer=<bytes>     SO_SNDBUF for client sockets (default: OS setting)");
+        System.err.println("  --receive-buffer=<bytes>  SO_RCVBUF for client sockets (default: OS setting)");
+        System.err.println("  --log-level=debug|info|warn|error|off");
+        System.err.println("                            Server log level; debug adds per-message logging (default: info)");
+        System.err.println("  --stats-interval=<s>      Log topic statistics every s seconds (default: 0, off)");
+        System.err.println("  --persist-dir=<path>      Append every topic to memory-mapped logs under path, so");
+        System.err.println("                            subscribers can replay with FROM (default: off)");
+        System.err.println("  --persist-segment-bytes=<n>  Log segment size (default: 67108864)");
+        System.err.println("  --persist-index-bytes=<n> Log bytes between sparse index entries (default: 4096)");
+        System.err.println("  --persist-max-segments=<n>  Segments kept per topic, oldest deleted first (default: 64,");
+        System.err.println("                            0 keeps all)");
+        System.err.println("  --persist-flush-ms=<n>    Flush logs to disk every n ms in the background (default: 1000,");
+        System.err.println("                            0 leaves it to the OS)");
+        System.err.println("  --persist-flush-messages=<n>  Also request a background flush every n messages per topic");
+        System.err.println("                            (default: 0, off)");
+        System.err.println("  --history=<n>             Replay a topic's last n messages to new subscribers (default: 0)");
+        System.err.println("  --topic-history=<topic>:<n>[,<topic>:<n>...]");
+        System.err.println("                            Per-topic override of --history");
+        System.err.println("  --history-topics=<n>      Most topics keeping a history at once (default: 1024)");
+        System.err.println("  --unix-socket=<path>      Also listen on a Unix domain socket at path (default: off)");
+        System.err.println("  --shm-dir=<path>          Also accept same-host clients over shared-memory rings in");
+        System.err.println("                            path, e.g. /dev/shm/pubsub (default: off)");
+        System.err.println("  --shm-max-park-us=<n>     Longest a quiet shared-memory session sleeps between");
+        System.err.println("                            checks, trading idle CPU for latency (default: 50000)");
+    }
+
+    static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+
+    static boolean parseBoolean(String name, String value) {
+        if ("true".equalsIgnoreCase(value.trim())) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value.trim())) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+    }
+
+    static int parseNonNegativeInt(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 0) {
+                throw new NumberFormatException();
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+
+    static int parsePositiveInt(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed <= 0) {
+                throw new NumberFormatException();
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,665 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Shared-memory transport for clients on the same host (--shm-dir). A client
+// creates a session file in the directory (a tmpfs such as /dev/shm) holding
+// two single-producer, single-consumer byte rings, one per direction, and the
+// server picks it up on its next scan. Both sides then exchange exactly the
+// bytes they would send over TCP, handshake included, so a session is an
+// ordinary ClientHandler to the rest of the server. Messages are copied into
+// and out of the rings with no system call and no kernel copy.
+//
+// One poller thread serves every session: it reads and routes what clients
+// have written, and copies their queued frames into their rings. Neither
+// side can wake the other across processes, so an idle side spins briefly,
+// then yields, then parks for longer the longer it stays quiet, up to
+// --shm-max-park-us (see ShmRing.idle); the server's own deliveries unpark
+// the poller at once. The server stores the cap in each session it accepts,
+// so its clients wait the same way.
+public class ShmTransport implements Runnable {
+    private static final long SCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Server server;
+    private final Path directory;
+    private final Thread thread;
+    private final long maxParkNanos;
+    // Poller thread only
+    private final List<ShmClientHandler> sessions = new ArrayList<>();
+    private final Set<Path> accepted = new HashSet<>();
+    private volatile boolean running = true;
+    private volatile boolean parked = false;
+    // Set by deliveries since the poller last looked
+    private volatile boolean signalled = false;
+
+    public ShmTransport(Server server, Path directory) throws IOException {
+        this.server = server;
+        this.directory = Files.createDirectories(directory);
+        this.maxParkNanos = TimeUnit.MICROSECONDS.toNanos(server.getConfig().getShmMaxParkMicros());
+        this.thread = new Thread(this, "shm-poller");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    boolean inPoller() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Something was queued for a session; runs on any thread
+    void wakeup() {
+        signalled = true;
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextScan = 0;
+        long idleSince = 0;
+        while (running) {
+            if (System.nanoTime() - nextScan >= 0) {
+                scan();
+                nextScan = System.nanoTime() + SCAN_INTERVAL_NANOS;
+            }
+            signalled = false;
+            boolean busy = false;
+            for (Iterator<ShmClientHandler> it = sessions.iterator(); it.hasNext();) {
+                ShmClientHandler session = it.next();
+                try {
+                    busy |= session.poll();
+                } catch (RuntimeException e) {
+                    Log.error("Error handling client " + session.getClientInfo() + ": " + e);
+                    session.disconnect();
+                }
+                if (!session.isConnected()) {
+                    session.disconnect();
+                    accepted.remove(session.file());
+                    it.remove();
+                }
+            }
+            if (busy) {
+                idleSince = 0;
+                continue;
+            }
+            if (idleSince == 0) {
+                idleSince = System.nanoTime();
+            }
+            // Re-check after setting the flag, so a delivery made just
+            // before it was set is not left waiting
+            // Never past the next scan, so new sessions are still picked up
+            parked = true;
+            if (!signalled) {
+                ShmRing.idle(idleSince, Math.min(maxParkNanos, nextScan - System.nanoTime()));
+            }
+            parked = false;
+        }
+        for (ShmClientHandler session : sessions) {
+            session.disconnect();
+        }
+        sessions.clear();
+    }
+
+    // Accept new session files, and drop sessions whose client process died
+    // without closing them
+    private void scan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ShmSession.SUFFIX)) {
+            for (Path file : files) {
+                if (accepted.contains(file)) {
+                    continue;
+                }
+                ShmSession session = ShmSession.open(file);
+                if (session == null || !session.accept(maxParkNanos)) {
+                    // Still being created, or not a session
+                    continue;
+                }
+                accepted.add(file);
+                ShmClientHandler handler = new ShmClientHandler(server, this, session);
+                server.addClient(handler);
+                sessions.add(handler);
+                handler.onConnected();
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            Log.error("Cannot scan shared memory directory " + directory + ": " + e.getMessage());
+        }
+        for (ShmClientHandler session : sessions) {
+            session.checkClientAlive();
+        }
+    }
+}
+
+// One session file:
+//   [header: 128 bytes][to-server ring control: 128][to-client ring control: 128]
+//   [to-server ring data][to-client ring data]
+// The client creates it, fills in the header and sets the state to READY;
+// the server moves it to ACCEPTED. Either side sets its closed flag when it
+// is done, after its last write.
+class ShmSession {
+    static final String SUFFIX = ".shm";
+    static final int DEFAULT_RING_BYTES = 1 << 20;
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+    private static final int MAGIC = 0x5053484D; // "PSHM"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int RING_BYTES_OFFSET = 4;
+    private static final int STATE_OFFSET = 8;
+    private static final int CLIENT_CLOSED_OFFSET = 12;
+    private static final int SERVER_CLOSED_OFFSET = 16;
+    private static final int PID_OFFSET = 24;
+    private static final int MAX_PARK_OFFSET = 32;
+    private static final int HEADER_BYTES = 128;
+    private static final int CONTROL_BYTES = 128;
+
+    private static final int STATE_CREATING = 0;
+    private static final int STATE_READY = 1;
+    private static final int STATE_ACCEPTED = 2;
+    // Taken by a server, which is still filling in its part of the header
+    private static final int STATE_CLAIMED = 3;
+
+    private static final AtomicLong nextSession = new AtomicLong();
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    final ShmRing toServer;
+    final ShmRing toClient;
+
+    private ShmSession(Path file, MappedByteBuffer buffer, int ringBytes) {
+        this.file = file;
+        this.buffer = buffer;
+        int data = HEADER_BYTES + 2 * CONTROL_BYTES;
+        this.toServer = new ShmRing(buffer, HEADER_BYTES, data, ringBytes);
+        this.toClient = new ShmRing(buffer, HEADER_BYTES + CONTROL_BYTES, data + ringBytes, ringBytes);
+    }
+
+    private static long fileSize(int ringBytes) {
+        return HEADER_BYTES + 2L * CONTROL_BYTES + 2L * ringBytes;
+    }
+
+    // Client side: a new session file, ready for the server to accept
+    static ShmSession create(Path directory, int ringBytes) throws IOException {
+        if (Integer.bitCount(ringBytes) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two: " + ringBytes);
+        }
+        long pid = ProcessHandle.current().pid();
+        Path file = directory.resolve("client-" + pid + "-" + nextSession.incrementAndGet() + SUFFIX);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Mapping past the end grows the file, zero-filled
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(ringBytes));
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(RING_BYTES_OFFSET, ringBytes);
+        buffer.putLong(PID_OFFSET, pid);
+        INTS.setRelease(buffer, STATE_OFFSET, STATE_READY);
+        return new ShmSession(file, buffer, ringBytes);
+    }
+
+    // Server side: map a session file, or return null if it is not (yet) a
+    // complete one
+    static ShmSession open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if ((int) INTS.getAcquire(buffer, STATE_OFFSET) == STATE_CREATING || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            return null;
+        }
+        int ringBytes = buffer.getInt(RING_BYTES_OFFSET);
+        if (Integer.bitCount(ringBytes) != 1 || fileSize(ringBytes) != buffer.capacity()) {
+            return null;
+        }
+        return new ShmSession(file, buffer, ringBytes);
+    }
+
+    // Server side: claim a READY session and tell the client how long to
+    // park at most when idle; false if another server got it
+    boolean accept(long maxParkNanos) {
+        if (!INTS.compareAndSet(buffer, STATE_OFFSET, STATE_READY, STATE_CLAIMED)) {
+            return false;
+        }
+        buffer.putLong(MAX_PARK_OFFSET, maxParkNanos);
+        INTS.setRelease(buffer, STATE_OFFSET, STATE_ACCEPTED);
+        return true;
+    }
+
+    boolean isAccepted() {
+        return (int) INTS.getAcquire(buffer, STATE_OFFSET) == STATE_ACCEPTED;
+    }
+
+    Path file() {
+        return file;
+    }
+
+    long clientPid() {
+        return buffer.getLong(PID_OFFSET);
+    }
+
+    // Set by the server before it accepts
+    long maxParkNanos() {
+        return buffer.getLong(MAX_PARK_OFFSET);
+    }
+
+    // After the closing side's last write
+    void markClosed(boolean byServer) {
+        INTS.setRelease(buffer, byServer ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET, 1);
+    }
+
+    boolean isClosed(boolean byServer) {
+        return (int) INTS.getAcquire(buffer, byServer ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET) != 0;
+    }
+
+    // Unlinking leaves the other side's mapping intact
+    void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left for the directory's owner to clean up
+        }
+    }
+}
+
+// Single-producer, single-consumer byte ring in a mapped file. The producer
+// only advances tail and the consumer only head, each a running byte count
+// stored with release and loaded with acquire ordering: bytes are written
+// before the tail that covers them is published, and read before the head
+// that frees their space is, so the two processes need no lock.
+class ShmRing {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    // Spinning only helps while the other side runs on another CPU
+    private static final boolean SPIN = Runtime.getRuntime().availableProcessors() > 1;
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long YIELD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private final ByteBuffer buffer;
+    // head and tail on separate cache lines
+    private final int headOffset;
+    private final int tailOffset;
+    private final int dataOffset;
+    private final int capacity;
+    private final int mask;
+
+    ShmRing(ByteBuffer buffer, int controlOffset, int dataOffset, int capacity) {
+        this.buffer = buffer;
+        this.headOffset = controlOffset;
+        this.tailOffset = controlOffset + 64;
+        this.dataOffset = dataOffset;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    // Producer: copy up to length bytes from src[offset..], as many as fit;
+    // returns how many
+    int write(ByteBuffer src, int offset, int length) {
+        long tail = (long) LONGS.get(buffer, tailOffset);
+        int n = (int) Math.min(length, capacity - (tail - (long) LONGS.getAcquire(buffer, headOffset)));
+        if (n <= 0) {
+            return 0;
+        }
+        int at = (int) (tail & mask);
+        int first = Math.min(n, capacity - at);
+        buffer.put(dataOffset + at, src, offset, first);
+        if (n > first) {
+            buffer.put(dataOffset, src, offset + first, n - first);
+        }
+        LONGS.setRelease(buffer, tailOffset, tail + n);
+        return n;
+    }
+
+    int write(byte[] src, int offset, int length) {
+        return write(ByteBuffer.wrap(src), offset, length);
+    }
+
+    // Consumer: copy up to length available bytes into dst[offset..];
+    // returns how many
+    int read(byte[] dst, int offset, int length) {
+        long head = (long) LONGS.get(buffer, headOffset);
+        int n = (int) Math.min(length, (long) LONGS.getAcquire(buffer, tailOffset) - head);
+        if (n <= 0) {
+            return 0;
+        }
+        int at = (int) (head & mask);
+        int first = Math.min(n, capacity - at);
+        buffer.get(dataOffset + at, dst, offset, first);
+        if (n > first) {
+            buffer.get(dataOffset, dst, offset + first, n - first);
+        }
+        LONGS.setRelease(buffer, headOffset, head + n);
+        return n;
+    }
+
+    // Consumer: read into a heap buffer in write mode
+    int read(ByteBuffer dst) {
+        int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    boolean isEmpty() {
+        return (long) LONGS.getAcquire(buffer, tailOffset) == (long) LONGS.get(buffer, headOffset);
+    }
+
+    // Wait for the other side, by how long it has been quiet (since
+    // idleSince, a nanoTime): spin, then yield, then park for a sixteenth of
+    // the quiet time, up to maxParkNanos (--shm-max-park-us). Data that ends
+    // a silence is therefore seen at most a sixteenth of that silence late,
+    // and never more than the cap; with the default 50 ms an idle waiter
+    // settles at 20 wakeups a second instead of polling flat out.
+    static void idle(long idleSince, long maxParkNanos) {
+        long quiet = System.nanoTime() - idleSince;
+        if (SPIN && quiet < SPIN_NANOS) {
+            Thread.onSpinWait();
+        } else if (quiet < YIELD_NANOS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.max(MIN_PARK_NANOS, Math.min(maxParkNanos, quiet >> 4)));
+        }
+    }
+}
+
+// Server end of a session, driven entirely by the poller thread
+class ShmClientHandler extends ClientHandler {
+    private final ShmTransport transport;
+    private final ShmSession session;
+    // Frame taken from the queue but not fully copied into the ring yet,
+    // holding its reference; offset bytes of it are written
+    private PooledBuffer current;
+    private int offset;
+    private boolean clientExited = false;
+    // Set while input waits on a full dispatcher queue (inputHeld, poller
+    // only) until the dispatcher drains (backedOff, cleared by it)
+    private boolean inputHeld = false;
+    private volatile boolean backedOff = false;
+
+    ShmClientHandler(Server server, ShmTransport transport, ShmSession session) {
+        super(server, "shm:" + session.clientPid() + ":" + session.file().getFileName());
+        this.transport = transport;
+        this.session = session;
+    }
+
+    Path file() {
+        return session.file();
+    }
+
+    // A client that exited without closing its session is treated as
+    // closed, so what it wrote before exiting is still routed
+    void checkClientAlive() {
+        if (!clientExited && !session.isClosed(false)
+                && !ProcessHandle.of(session.clientPid()).map(ProcessHandle::isAlive).orElse(false)) {
+            Log.warn("Client " + getClientInfo() + " exited without closing its session");
+            clientExited = true;
+        }
+    }
+
+    // One pass: route what the client has written, then copy out what is
+    // queued for it. Returns whether anything moved.
+    boolean poll() {
+        boolean busy = false;
+        if (inputHeld) {
+            if (backedOff) {
+                return flush();
+            }
+            // Input left buffered when it backed off goes first
+            inputHeld = false;
+            busy = true;
+            if (!processInput()) {
+                disconnect();
+                return true;
+            }
+        }
+        if (!inputHeld && session.toServer.read(inputBuffer) > 0) {
+            busy = true;
+            if (!processInput()) {
+                disconnect();
+                return true;
+            }
+        } else if (!inputHeld && (clientExited || session.isClosed(false)) && session.toServer.isEmpty()) {
+            disconnect();
+            return true;
+        }
+        return flush() || busy;
+    }
+
+    private boolean flush() {
+        int messages = 0;
+        boolean wrote = false;
+        while (connected) {
+            if (current == null) {
+                current = pollWithCredit();
+                if (current == null) {
+                    if (isClosing() && getQueueDepth() == 0) {
+                        disconnect();
+                    }
+                    break;
+                }
+                offset = 0;
+            }
+            int length = current.length() - offset;
+            int written = session.toClient.write(current.buffer(), offset, length);
+            wrote |= written > 0;
+            offset += written;
+            if (written < length) {
+                // Ring full; the client frees space as it reads
+                break;
+            }
+            current.release();
+            current = null;
+            messages++;
+        }
+        if (messages > 0) {
+            // No system call is involved
+            server.recordWrites(messages, 0);
+        }
+        return wrote;
+    }
+
+    @Override
+    protected void onEnqueued() {
+        transport.wakeup();
+    }
+
+    // The poller serves every session, so this one just stops reading its
+    // ring until the dispatcher drains; poll() then picks up where it left off
+    @Override
+    protected boolean backOff(Dispatcher dispatcher) {
+        inputHeld = true;
+        backedOff = true;
+        dispatcher.whenDrained(() -> {
+            backedOff = false;
+            transport.wakeup();
+        });
+        return false;
+    }
+
+    // Called mid-broadcast; the poller finishes the disconnect
+    @Override
+    protected void abort() {
+        connected = false;
+        transport.wakeup();
+    }
+
+    @Override
+    protected void closeConnection() {
+        // A part-written frame belongs to the poller, so only it may release it
+        if (transport.inPoller() && current != null) {
+            current.release();
+            current = null;
+        }
+        session.markClosed(true);
+        session.delete();
+    }
+}
+
+// Client end of a session, standing in for a Socket: only the streams,
+// close() and the TCP options (ignored) are supported, which is all Client,
+// ClientConnection and LoadGenerator use. Reads and writes wait on the ring
+// with ShmRing.idle instead of blocking in the kernel.
+class ShmSocket extends Socket {
+    private static final long ACCEPT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final ShmSession session;
+    private final InputStream input = new RingInputStream();
+    private final OutputStream output = new RingOutputStream();
+    private volatile boolean closed = false;
+
+    private ShmSocket(ShmSession session) {
+        this.session = session;
+    }
+
+    // Create a session under the server's --shm-dir and wait for the
+    // server to accept it
+    static ShmSocket connect(Path directory, int ringBytes) throws IOException {
+        ShmSession session = ShmSession.create(directory, ringBytes);
+        long deadline = System.nanoTime() + ACCEPT_TIMEOUT_NANOS;
+        while (!session.isAccepted()) {
+            if (System.nanoTime() - deadline > 0) {
+                session.delete();
+                throw new IOException("No server accepted the session in " + directory);
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return new ShmSocket(session);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        session.markClosed(false);
+        session.delete();
+    }
+
+    @Override
+    public String toString() {
+        return "ShmSocket[" + session.file() + "]";
+    }
+
+    private final class RingInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        // Waits for at least one byte; -1 once the server has closed its
+        // side and everything it wrote has been read
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long idleSince = 0;
+            while (true) {
+                if (closed) {
+                    throw new IOException("Socket closed");
+                }
+                int n = session.toClient.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                if (session.isClosed(true) && session.toClient.isEmpty()) {
+                    return -1;
+                }
+                if (idleSince == 0) {
+                    idleSince = System.nanoTime();
+                }
+                ShmRing.idle(idleSince, session.maxParkNanos());
+            }
+        }
+
+        @Override
+        public int available() {
+            return session.toClient.isEmpty() ? 0 : 1;
+        }
+    }
+
+    private final class RingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        // Waits while the ring is full
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long idleSince = 0;
+            while (len > 0) {
+                if (closed) {
+                    throw new IOException("Socket closed");
+                }
+                if (session.isClosed(true)) {
+                    throw new IOException("Connection closed by server");
+                }
+                int n = session.toServer.write(b, off, len);
+                if (n > 0) {
+                    off += n;
+                    len -= n;
+                    idleSince = 0;
+                } else {
+                    if (idleSince == 0) {
+                        idleSince = System.nanoTime();
+                    }
+                    ShmRing.idle(idleSince, session.maxParkNanos());
+                }
+            }
+        }
+    }
+}
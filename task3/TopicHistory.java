@@ -0,0 +1,92 @@
+// The last N messages of one topic, replayed to subscribers that join late.
+// Created on a topic's first publish or subscriber, so topics nobody uses
+// cost nothing, with all N slots allocated up front; after that a publish
+// only overwrites the oldest slot. Slots keep a reference on the frames the
+// broadcast already encoded (see PooledBuffer), so a replay shares them
+// instead of encoding again.
+//
+// Not thread-safe on its own: Server appends and fans out while holding the
+// history's lock, and registers a new subscriber and replays under the same
+// lock, so each message is either in the replay or delivered live, never both.
+class TopicHistory {
+    private static final class Slot {
+        Publication from;
+        // The MESSAGE frame, which also holds the payload
+        PooledBuffer frame;
+        PooledBuffer textFrame;
+    }
+
+    private final BufferPool pool;
+    private final Slot[] slots;
+    // Next slot to write; the oldest message once the ring is full
+    private int next = 0;
+    private int size = 0;
+
+    TopicHistory(BufferPool pool, int capacity) {
+        this.pool = pool;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    // Keeps its own reference on the frames; textFrame may be null if no
+    // subscriber needed the text form
+    void add(Publication from, PooledBuffer frame, PooledBuffer textFrame) {
+        Slot slot = slots[next];
+        if (slot.frame != null) {
+            slot.frame.release();
+        }
+        if (slot.textFrame != null) {
+            slot.textFrame.release();
+        }
+        slot.from = from;
+        slot.frame = frame.retain();
+        slot.textFrame = textFrame != null ? textFrame.retain() : null;
+        next = (next + 1) % slots.length;
+        if (size < slots.length) {
+            size++;
+        }
+    }
+
+    // Queue the history to a new subscriber, oldest first. Never more than
+    // fits in its queue, so the overflow policy cannot cut the replay short;
+    // the newest messages are the ones kept. Returns the number queued.
+    int replayTo(ClientHandler subscriber) {
+        int count = Math.min(size, subscriber.getQueueRoom());
+        for (int i = count; i > 0; i--) {
+            Slot slot = slots[Math.floorMod(next - i, slots.length)];
+            if (subscriber.deliver(frameFor(slot, subscriber.isBinary()).retain()) == OutboundQueue.Offer.REJECTED) {
+                return count - i;
+            }
+        }
+        return count;
+    }
+
+    // Drop every message, giving back the frames' references
+    void clear() {
+        for (Slot slot : slots) {
+            if (slot.frame != null) {
+                slot.frame.release();
+            }
+            if (slot.textFrame != null) {
+                slot.textFrame.release();
+            }
+            slot.from = null;
+            slot.frame = null;
+            slot.textFrame = null;
+        }
+        next = 0;
+        size = 0;
+    }
+
+    private PooledBuffer frameFor(Slot slot, boolean binary) {
+        if (binary) {
+            return slot.frame;
+        }
+        if (slot.textFrame == null) {
+            slot.textFrame = slot.from.encodeLine(pool, slot.frame);
+        }
+        return slot.textFrame;
+    }
+}
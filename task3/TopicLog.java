@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Append-only message log for one topic: a directory of fixed-size,
+// memory-mapped segments named by the offset of their first message. Offsets
+// number a topic's messages from 0 and never repeat. With
+// --persist-max-segments, the oldest segment is deleted whenever a roll
+// would keep more than that many.
+//
+// Appends are serialized on the TopicLog; Server holds the same lock while
+// it fans the message out, so the log order is the delivery order (see
+// LogReplay). Appends only copy into the mapping; forcing it to disk is left
+// to LogStore's background flusher, never the publish path.
+public class TopicLog {
+    // Called for each record read; return false to stop
+    public interface RecordVisitor {
+        boolean visit(long offset, String publisherInfo, byte[] payload);
+    }
+
+    private final String topic;
+    private final File directory;
+    private final int segmentBytes;
+    private final int indexBytes;
+    // 0 keeps every segment
+    private final int maxSegments;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile LogSegment active;
+    private final int flushMessages;
+    private int unflushedMessages = 0;
+    private final Runnable flushRequest;
+
+    // Open the topic's directory, recovering any segments already in it
+    TopicLog(String topic, File directory, ServerConfig config, Runnable flushRequest) throws IOException {
+        this.topic = topic;
+        this.directory = directory;
+        this.segmentBytes = config.getPersistSegmentBytes();
+        this.indexBytes = config.getPersistIndexBytes();
+        this.maxSegments = config.getPersistMaxSegments();
+        this.flushMessages = config.getPersistFlushMessages();
+        this.flushRequest = flushRequest;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LogSegment.LOG_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length()));
+                segments.put(baseOffset, LogSegment.open(directory, baseOffset, segmentBytes, indexBytes));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, LogSegment.open(directory, 0, segmentBytes, indexBytes));
+        }
+        active = segments.lastEntry().getValue();
+        trim();
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    // Offset of the oldest message still on disk
+    public long earliestOffset() {
+        return segments.firstKey();
+    }
+
+    // Offset the next appended message will get
+    public long nextOffset() {
+        return active.nextOffset();
+    }
+
+    // Append payload[offset, offset + length); returns the message's offset
+    public synchronized long append(byte[] publisherInfo, ByteBuffer payload, int offset, int length)
+            throws IOException {
+        long logOffset = active.append(publisherInfo, payload, offset, length);
+        if (logOffset < 0) {
+            // Active segment is full: roll to a new one, sized up for an
+            // oversized message. An empty segment too small for the message
+            // is replaced rather than kept, as the new one has its offset.
+            int needed = LogSegment.recordLength(publisherInfo, length);
+            if (active.nextOffset() == active.baseOffset()) {
+                // Its mapping stays readable until the new segment replaces it
+                active.delete();
+            }
+            LogSegment next = LogSegment.open(directory, active.nextOffset(), Math.max(segmentBytes, needed),
+                    indexBytes);
+            segments.put(next.baseOffset(), next);
+            active = next;
+            trim();
+            logOffset = active.append(publisherInfo, payload, offset, length);
+        }
+        if (flushMessages > 0 && ++unflushedMessages >= flushMessages) {
+            unflushedMessages = 0;
+            flushRequest.run();
+        }
+        return logOffset;
+    }
+
+    // Drop the oldest segments beyond --persist-max-segments; a reader still
+    // in one keeps its mapping until it moves on (see read)
+    private void trim() {
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            LogSegment oldest = segments.pollFirstEntry().getValue();
+            oldest.delete();
+            Log.info("Deleted log segment " + oldest.baseOffset() + " of topic '" + topic + "'");
+        }
+    }
+
+    // Visit records from an offset onwards (clamped to what is on disk), up to
+    // max records; returns the offset after the last record visited
+    public long read(long from, int max, RecordVisitor visitor) {
+        long offset = from;
+        int visited = 0;
+        while (visited < max) {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                // Before the earliest segment, or deleted since the last
+                // pass: skip ahead to what is still on disk
+                offset = earliestOffset();
+                continue;
+            }
+            LogSegment segment = entry.getValue();
+            if (offset >= segment.nextOffset()) {
+                // Past the end of this segment: either the log end or the
+                // start of a later segment
+                Long later = segments.higherKey(entry.getKey());
+                if (later == null) {
+                    return offset;
+                }
+                offset = later;
+                continue;
+            }
+            long[] cursor = { offset };
+            int limit = max - visited;
+            int[] count = { 0 };
+            segment.read(offset, (recordOffset, info, payload) -> {
+                if (count[0] == limit || !visitor.visit(recordOffset, info, payload)) {
+                    return false;
+                }
+                count[0]++;
+                cursor[0] = recordOffset + 1;
+                return true;
+            });
+            if (count[0] == 0) {
+                return cursor[0];
+            }
+            visited += count[0];
+            offset = cursor[0];
+        }
+        return offset;
+    }
+
+    // Force written data to disk; called from the flusher thread
+    void flush() {
+        for (LogSegment segment : segments.values()) {
+            segment.flush();
+        }
+    }
+
+    void close() {
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+}
+
+// One memory-mapped log file plus its sparse index. Record layout:
+//   [marker:1][infoLength:2][payloadLength:4][publisherInfo][payload]
+// The marker byte is written last, so a record cut short by a crash reads as
+// the end of the log. Index entries are [relativeOffset:4][position:4], one
+// per --persist-index-bytes of log; the segment's first record is always at
+// position 0 and not indexed, so a zero position ends the index.
+class LogSegment {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    private static final byte RECORD = 1;
+    private static final int RECORD_HEADER = 7;
+    private static final int INDEX_ENTRY = 8;
+
+    private final File directory;
+    private final long baseOffset;
+    private final int indexBytes;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private int indexEntries = 0;
+    private int lastIndexedPosition = 0;
+    private int writePosition = 0;
+    // Published after the record bytes, so readers never see a partial record
+    private volatile long nextOffset;
+    private volatile boolean dirty = false;
+
+    private LogSegment(File directory, long baseOffset, int indexBytes, MappedByteBuffer log,
+            MappedByteBuffer index) {
+        this.directory = directory;
+        this.baseOffset = baseOffset;
+        this.indexBytes = indexBytes;
+        this.log = log;
+        this.index = index;
+        this.nextOffset = baseOffset;
+    }
+
+    // Open or create a segment. A new (or empty) file is sized to capacity; an
+    // existing one keeps its size and is scanned from its last index entry to
+    // find the end of the data. The files are closed once mapped: a mapping
+    // stays valid without its channel, so a segment holds no descriptors.
+    static LogSegment open(File directory, long baseOffset, int capacity, int indexBytes) throws IOException {
+        String name = String.format("%020d", baseOffset);
+        MappedByteBuffer log;
+        MappedByteBuffer index;
+        try (RandomAccessFile logFile = new RandomAccessFile(new File(directory, name + LOG_SUFFIX), "rw");
+                RandomAccessFile indexFile = new RandomAccessFile(new File(directory, name + INDEX_SUFFIX), "rw")) {
+            if (logFile.length() == 0) {
+                logFile.setLength(capacity);
+            }
+            long indexLength = (logFile.length() / indexBytes + 1) * INDEX_ENTRY;
+            if (indexFile.length() < indexLength) {
+                indexFile.setLength(indexLength);
+            }
+            log = logFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, logFile.length());
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length());
+        }
+        LogSegment segment = new LogSegment(directory, baseOffset, indexBytes, log, index);
+        segment.recover();
+        return segment;
+    }
+
+    static int recordLength(byte[] info, int payloadLength) {
+        return RECORD_HEADER + info.length + payloadLength;
+    }
+
+    private void recover() {
+        int position = 0;
+        long offset = baseOffset;
+        while ((indexEntries + 1) * INDEX_ENTRY <= index.capacity()) {
+            int entryPosition = index.getInt(indexEntries * INDEX_ENTRY + 4);
+            if (entryPosition == 0) {
+                break;
+            }
+            offset = baseOffset + index.getInt(indexEntries * INDEX_ENTRY);
+            position = entryPosition;
+            indexEntries++;
+        }
+        lastIndexedPosition = position;
+
+        while (position + RECORD_HEADER <= log.capacity() && log.get(position) == RECORD) {
+            int payloadLength = log.getInt(position + 3);
+            int length = RECORD_HEADER + (log.getShort(position + 1) & 0xFFFF) + payloadLength;
+            if (payloadLength < 0 || position + length > log.capacity()) {
+                break;
+            }
+            position += length;
+            offset++;
+        }
+        writePosition = position;
+        nextOffset = offset;
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    // Returns the record's offset, or -1 if the segment has no room for it.
+    // Callers serialize appends.
+    long append(byte[] info, ByteBuffer payload, int payloadOffset, int payloadLength) {
+        int length = recordLength(info, payloadLength);
+        int position = writePosition;
+        if (position + length > log.capacity()) {
+            return -1;
+        }
+        long offset = nextOffset;
+        if (position - lastIndexedPosition >= indexBytes
+                && (indexEntries + 1) * INDEX_ENTRY <= index.capacity()) {
+            index.putInt(indexEntries * INDEX_ENTRY, (int) (offset - baseOffset));
+            index.putInt(indexEntries * INDEX_ENTRY + 4, position);
+            indexEntries++;
+            lastIndexedPosition = position;
+        }
+
+        log.putShort(position + 1, (short) info.length).putInt(position + 3, payloadLength)
+                .put(position + RECORD_HEADER, info)
+                .put(position + RECORD_HEADER + info.length, payload, payloadOffset, payloadLength);
+        log.put(position, RECORD);
+        writePosition = position + length;
+        dirty = true;
+        nextOffset = offset + 1;
+        return offset;
+    }
+
+    // Visit records from an offset in this segment until the visitor stops or
+    // the data ends
+    void read(long from, TopicLog.RecordVisitor visitor) {
+        long end = nextOffset;
+        long offset = baseOffset;
+        int position = 0;
+
+        // Binary search the sparse index for the last entry at or before from
+        int low = 0;
+        int high = indexEntries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long entryOffset = baseOffset + index.getInt(mid * INDEX_ENTRY);
+            if (entryOffset <= from) {
+                offset = entryOffset;
+                position = index.getInt(mid * INDEX_ENTRY + 4);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        ByteBuffer records = log.duplicate();
+        while (offset < end) {
+            int infoLength = records.getShort(position + 1) & 0xFFFF;
+            int payloadLength = records.getInt(position + 3);
+            if (offset >= from) {
+                byte[] info = new byte[infoLength];
+                byte[] payload = new byte[payloadLength];
+                records.position(position + RECORD_HEADER);
+                records.get(info).get(payload);
+                if (!visitor.visit(offset, new String(info, StandardCharsets.UTF_8), payload)) {
+                    return;
+                }
+            }
+            position += RECORD_HEADER + infoLength + payloadLength;
+            offset++;
+        }
+    }
+
+    void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        log.force();
+        index.force();
+    }
+
+    // The mappings themselves are released when the segment is collected
+    void close() {
+        flush();
+    }
+
+    // Remove a segment's files; readers already in it can finish, as its
+    // mapping outlives them
+    void delete() {
+        dirty = false;
+        String name = String.format("%020d", baseOffset);
+        new File(directory, name + LOG_SUFFIX).delete();
+        new File(directory, name + INDEX_SUFFIX).delete();
+    }
+}
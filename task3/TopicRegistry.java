@@ -0,0 +1,69 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Topic -> clients index with copy-on-write snapshots. Readers (the publish
+// path) get an immutable array without taking any lock; register and remove
+// build a new array and swap it in atomically for that topic only.
+public class TopicRegistry {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final ConcurrentHashMap<String, ClientHandler[]> clientsByTopic = new ConcurrentHashMap<>();
+
+    // Current clients of a topic; never null, must not be modified
+    public ClientHandler[] get(String topic) {
+        ClientHandler[] clients = clientsByTopic.get(topic);
+        return clients != null ? clients : EMPTY;
+    }
+
+    // Returns the number of clients on the topic after adding
+    public int add(String topic, ClientHandler client) {
+        return clientsByTopic.compute(topic, (key, clients) -> {
+            if (clients == null) {
+                return new ClientHandler[] { client };
+            }
+            for (ClientHandler existing : clients) {
+                if (existing == client) {
+                    return clients;
+                }
+            }
+            ClientHandler[] updated = Arrays.copyOf(clients, clients.length + 1);
+            updated[clients.length] = client;
+            return updated;
+        }).length;
+    }
+
+    // Removes the client; the topic itself goes away with its last client.
+    // Returns false if the client was not registered on the topic.
+    public boolean remove(String topic, ClientHandler client) {
+        boolean[] removed = new boolean[1];
+        clientsByTopic.computeIfPresent(topic, (key, clients) -> {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] != client) {
+                    continue;
+                }
+                removed[0] = true;
+                if (clients.length == 1) {
+                    return null;
+                }
+                ClientHandler[] updated = new ClientHandler[clients.length - 1];
+                System.arraycopy(clients, 0, updated, 0, i);
+                System.arraycopy(clients, i + 1, updated, i, clients.length - i - 1);
+                return updated;
+            }
+            return clients;
+        });
+        return removed[0];
+    }
+
+    public int count(String topic) {
+        return get(topic).length;
+    }
+
+    public Set<String> topics() {
+        return clientsByTopic.keySet();
+    }
+
+    public void clear() {
+        clientsByTopic.clear();
+    }
+}
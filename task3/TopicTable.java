@@ -0,0 +1,185 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Interns topic names (and subscription patterns) to dense integer ids when
+// a client registers them, so the publish path routes by array index instead
+// of hashing the name: a binary MESSAGE frame's topic id is the index of the
+// topic's slot, and the slot holds everything routing needs (see Topic).
+//
+// Each registration holds a reference on its topic. When the last one goes,
+// the topic is dead: its slot is emptied and its index reused for the next
+// new topic. An id is the slot index plus a generation, bumped on every
+// reuse, so an id a client still remembers from a dead topic never names
+// the new one (until the generation wraps, after 2048 reuses of one slot).
+//
+// Lookups by id are lock-free; acquire and release happen at registration
+// time only and are serialized on the table.
+public class TopicTable {
+    static final int INDEX_BITS = 20;
+    static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    // Index 0 is never used, so id 0 still means "no topic" (INFO frames)
+    static final int MAX_TOPICS = INDEX_MASK;
+    private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+
+    private final Map<String, Topic> byName = new HashMap<>();
+    private volatile AtomicReferenceArray<Topic> slots = new AtomicReferenceArray<>(64);
+    // Generation of the next topic per index; grown with slots
+    private int[] generations = new int[64];
+    // Freed indexes, reused most recent first while their slots are warm
+    private int[] free = new int[16];
+    private int freeCount = 0;
+    private int nextIndex = 1;
+
+    // Live topic with this id, or null if it has died since the id was given out
+    public Topic get(int id) {
+        AtomicReferenceArray<Topic> current = slots;
+        int index = id & INDEX_MASK;
+        if (index >= current.length()) {
+            return null;
+        }
+        Topic topic = current.get(index);
+        return topic != null && topic.id == id ? topic : null;
+    }
+
+    // Live topic with this name, or null
+    public synchronized Topic get(String name) {
+        return byName.get(name);
+    }
+
+    // Take a reference on a topic, creating it (with a new id) if it is not
+    // live. Returns null only if MAX_TOPICS topics are already live.
+    public synchronized Topic acquire(String name) {
+        Topic topic = byName.get(name);
+        if (topic == null) {
+            int index = allocateIndex();
+            if (index < 0) {
+                return null;
+            }
+            topic = new Topic(name, generations[index] << INDEX_BITS | index);
+            byName.put(name, topic);
+            slots.set(index, topic);
+        }
+        topic.references++;
+        return topic;
+    }
+
+    // Drop a reference taken by acquire(); the last one frees the id
+    public synchronized void release(String name) {
+        Topic topic = byName.get(name);
+        if (topic == null || --topic.references > 0) {
+            return;
+        }
+        int index = topic.id & INDEX_MASK;
+        byName.remove(name);
+        slots.set(index, null);
+        generations[index] = (generations[index] + 1) & GENERATION_MASK;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = index;
+    }
+
+    // release() only if this is the topic's last reference; false, keeping
+    // the reference, if anyone else still holds one
+    public synchronized boolean releaseIfLast(String name) {
+        Topic topic = byName.get(name);
+        if (topic == null || topic.references != 1) {
+            return false;
+        }
+        release(name);
+        return true;
+    }
+
+    private int allocateIndex() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (nextIndex > MAX_TOPICS) {
+            return -1;
+        }
+        int index = nextIndex++;
+        AtomicReferenceArray<Topic> current = slots;
+        if (index >= current.length()) {
+            // Copied under the lock, so no slot set concurrently is lost;
+            // readers still on the old array only miss topics newer than it
+            int length = Math.min(current.length() * 2, MAX_TOPICS + 1);
+            AtomicReferenceArray<Topic> larger = new AtomicReferenceArray<>(length);
+            for (int i = 0; i < current.length(); i++) {
+                larger.set(i, current.get(i));
+            }
+            generations = Arrays.copyOf(generations, length);
+            slots = larger;
+        }
+        return index;
+    }
+
+    // Visits every live topic and pattern, holding the table's lock
+    public synchronized void forEach(Consumer<Topic> action) {
+        byName.values().forEach(action);
+    }
+
+    // Live topics and patterns
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    public synchronized void clear() {
+        byName.clear();
+        slots = new AtomicReferenceArray<>(64);
+        generations = new int[64];
+        freeCount = 0;
+        nextIndex = 1;
+    }
+}
+
+// One interned topic name: its id and the per-topic routing state. Routing
+// holds on to the Topic itself rather than its id, so a message already
+// on its way finishes routing even if the topic dies meanwhile.
+class Topic {
+    final String name;
+    final int id;
+    // Boxed once, for the clients' sets of bound ids
+    final Integer boxedId;
+    // Guarded by the TopicTable
+    int references;
+    // Subscribers matching this topic, valid while their version is still
+    // matchVersion; bumped (under the TopicTrie's lock) by each subscription
+    // change that matches this topic. See TopicTrie.match(Topic)
+    volatile long matchVersion;
+    volatile Subscribers subscribers;
+    // Consumer groups matching this topic, likewise; see
+    // ConsumerGroups.match(Topic)
+    volatile Groups groups;
+
+    static final class Subscribers {
+        final long version;
+        final ClientHandler[] clients;
+
+        Subscribers(long version, ClientHandler[] clients) {
+            this.version = version;
+            this.clients = clients;
+        }
+    }
+
+    static final class Groups {
+        final long version;
+        final ConsumerGroup[] groups;
+
+        Groups(long version, ConsumerGroup[] groups) {
+            this.version = version;
+            this.groups = groups;
+        }
+    }
+
+    Topic(String name, int id) {
+        this.name = name;
+        this.id = id;
+        this.boxedId = id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
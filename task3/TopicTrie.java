@@ -0,0 +1,229 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Subscription index over dot-separated topic segments. A subscription is a
+// concrete topic (SPORTS.FOOTBALL) or a pattern where '*' matches exactly one
+// segment (SPORTS.*.SCORES) and a trailing '#' matches zero or more
+// (SPORTS.#). Matching walks one trie level per topic segment, following the
+// literal child plus any '*' and '#' children, so its cost depends on the
+// topic's depth rather than on how many patterns exist.
+//
+// Matches are cached on each concrete topic's Topic entry, stamped with the
+// topic's match version. A subscription change bumps the version of only the
+// live topics it matches (one lookup for a concrete subscription, a scan of
+// the TopicTable for a pattern), so subscribers coming and going on one
+// topic leave every other topic's cached match in place.
+// Like TopicRegistry, readers never lock and only see immutable arrays;
+// changes are serialized on the trie itself.
+public class TopicTrie {
+    public static final String SINGLE_WILDCARD = "*";
+    public static final String MULTI_WILDCARD = "#";
+
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final Node root = new Node(null, null);
+    // Subscribers per subscription string, for counts and statistics
+    private final ConcurrentHashMap<String, ClientHandler[]> clientsByPattern = new ConcurrentHashMap<>();
+    // Live topics, whose cached matches a change invalidates
+    private final TopicTable topics;
+
+    public TopicTrie(TopicTable topics) {
+        this.topics = topics;
+    }
+
+    private static final class Node {
+        final Node parent;
+        final String segment;
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile ClientHandler[] clients = EMPTY;
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+
+    // True if the subscription uses '*' or '#'
+    public static boolean isPattern(String subscription) {
+        for (String segment : subscription.split("\\.", -1)) {
+            if (SINGLE_WILDCARD.equals(segment) || MULTI_WILDCARD.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reason a subscription is malformed, or null if it is usable
+    public static String validate(String subscription) {
+        String[] segments = subscription.split("\\.", -1);
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty()) {
+                return "empty topic segment in '" + subscription + "'";
+            }
+            if (MULTI_WILDCARD.equals(segment) && i != segments.length - 1) {
+                return "'#' is only allowed as the last segment";
+            }
+            if (segment.length() > 1 && (segment.contains(SINGLE_WILDCARD) || segment.contains(MULTI_WILDCARD))) {
+                return "wildcards must be a whole segment in '" + subscription + "'";
+            }
+        }
+        return null;
+    }
+
+    // True if a concrete topic matches a subscription, by the same rules as
+    // match(); for a client sorting out what arrives on one connection
+    public static boolean matches(String subscription, String topic) {
+        String[] pattern = subscription.split("\\.", -1);
+        String[] segments = topic.split("\\.", -1);
+        for (int i = 0; i < pattern.length; i++) {
+            if (MULTI_WILDCARD.equals(pattern[i])) {
+                return true;
+            }
+            if (i == segments.length || !(SINGLE_WILDCARD.equals(pattern[i]) || pattern[i].equals(segments[i]))) {
+                return false;
+            }
+        }
+        return pattern.length == segments.length;
+    }
+
+    // Subscribers of exactly this subscription string; never null
+    public ClientHandler[] get(String subscription) {
+        ClientHandler[] clients = clientsByPattern.get(subscription);
+        return clients != null ? clients : EMPTY;
+    }
+
+    // Every subscriber whose subscription matches a concrete topic, each
+    // client at most once; never null, must not be modified
+    public ClientHandler[] match(Topic topic) {
+        // Read the version before walking: a change that lands during the
+        // walk bumps it again, so this result is never served as current
+        long current = topic.matchVersion;
+        Topic.Subscribers cached = topic.subscribers;
+        if (cached != null && cached.version == current) {
+            return cached.clients;
+        }
+        ClientHandler[] clients = match(topic.name);
+        topic.subscribers = new Topic.Subscribers(current, clients);
+        return clients;
+    }
+
+    // Uncached match, for topics without a Topic entry at hand
+    public ClientHandler[] match(String topic) {
+        Set<ClientHandler> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        collect(root, topic.split("\\.", -1), 0, matched);
+        return matched.isEmpty() ? EMPTY : matched.toArray(EMPTY);
+    }
+
+    private static void collect(Node node, String[] segments, int depth, Set<ClientHandler> matched) {
+        Node multi = node.children.get(MULTI_WILDCARD);
+        if (multi != null) {
+            Collections.addAll(matched, multi.clients);
+        }
+        if (depth == segments.length) {
+            Collections.addAll(matched, node.clients);
+            return;
+        }
+        Node literal = node.children.get(segments[depth]);
+        if (literal != null) {
+            collect(literal, segments, depth + 1, matched);
+        }
+        Node single = node.children.get(SINGLE_WILDCARD);
+        if (single != null) {
+            collect(single, segments, depth + 1, matched);
+        }
+    }
+
+    // Returns the number of clients on the subscription after adding
+    public synchronized int add(String subscription, ClientHandler client) {
+        Node node = root;
+        for (String segment : subscription.split("\\.", -1)) {
+            Node parent = node;
+            node = parent.children.computeIfAbsent(segment, s -> new Node(parent, s));
+        }
+        for (ClientHandler existing : node.clients) {
+            if (existing == client) {
+                return node.clients.length;
+            }
+        }
+        ClientHandler[] updated = Arrays.copyOf(node.clients, node.clients.length + 1);
+        updated[node.clients.length] = client;
+        node.clients = updated;
+        clientsByPattern.put(subscription, updated);
+        invalidate(subscription);
+        return updated.length;
+    }
+
+    // Removes the client; trie nodes that no longer lead to any subscriber are
+    // pruned. Returns false if the client was not subscribed.
+    public synchronized boolean remove(String subscription, ClientHandler client) {
+        Node node = root;
+        for (String segment : subscription.split("\\.", -1)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return false;
+            }
+        }
+        ClientHandler[] clients = node.clients;
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] != client) {
+                continue;
+            }
+            ClientHandler[] updated = EMPTY;
+            if (clients.length > 1) {
+                updated = new ClientHandler[clients.length - 1];
+                System.arraycopy(clients, 0, updated, 0, i);
+                System.arraycopy(clients, i + 1, updated, i, clients.length - i - 1);
+            }
+            node.clients = updated;
+            if (updated.length == 0) {
+                clientsByPattern.remove(subscription);
+                prune(node);
+            } else {
+                clientsByPattern.put(subscription, updated);
+            }
+            invalidate(subscription);
+            return true;
+        }
+        return false;
+    }
+
+    // Called after the trie has changed, so a topic created after this looks
+    // at the new trie and one created before it is in the table to be bumped
+    private void invalidate(String subscription) {
+        if (!isPattern(subscription)) {
+            Topic topic = topics.get(subscription);
+            if (topic != null) {
+                topic.matchVersion++;
+            }
+            return;
+        }
+        topics.forEach(topic -> {
+            if (matches(subscription, topic.name)) {
+                topic.matchVersion++;
+            }
+        });
+    }
+
+    private static void prune(Node node) {
+        while (node.parent != null && node.clients.length == 0 && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment, node);
+            node = node.parent;
+        }
+    }
+
+    public int count(String subscription) {
+        return get(subscription).length;
+    }
+
+    // Subscription strings with at least one subscriber
+    public Set<String> subscriptions() {
+        return clientsByPattern.keySet();
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        clientsByPattern.clear();
+        topics.forEach(topic -> topic.matchVersion++);
+    }
+}
@@ -0,0 +1,63 @@
+#!/usr/bin/env bash
+# Compare --io=threads with --io=virtual: for each mode and connection count,
+# start a server, connect that many subscribers with the load generator,
+# publish at a low fixed rate, and record the server's thread count and RSS
+# (peak over the run, from /proc) next to the load generator's latency.
+#
+#   ./compare-io-modes.sh [connections ...]     (default: 1000 5000)
+#
+# Run it from task3 after javac *.java, with the JDK to measure first on the
+# PATH; --io=virtual needs Java 21 or later and otherwise falls back to the
+# cached pool, which the table marks. Linux only (reads /proc).
+set -euo pipefail
+
+counts=("$@")
+if [ $# -eq 0 ]; then
+    counts=(1000 5000)
+fi
+port=${PORT:-5790}
+rate=${RATE:-200}
+duration=${DURATION:-10}
+log=$(mktemp)
+trap 'rm -f "$log"' EXIT
+
+echo "java: $(java -version 2>&1 | head -1), $(nproc) CPU"
+echo "rate: $rate msg/s published, each to every subscriber; ${duration} s measured"
+echo
+echo "| Mode | Connections | Server threads | Server RSS | p50 latency | p99 latency |"
+echo "| ---- | ----------- | -------------- | ---------- | ----------- | ----------- |"
+
+for connections in "${counts[@]}"; do
+    for mode in threads virtual; do
+        java -Xss256k -cp . Server "$port" --io="$mode" --queue-capacity=100000 >"$log" 2>&1 &
+        server=$!
+        sleep 1
+
+        java -cp . Client localhost "$port" LOAD --subscribers="$connections" --publishers=1 \
+            --rate="$rate" --duration="$duration" --warmup=2 >"$log.load" 2>&1 &
+        load=$!
+
+        threads=0
+        rss=0
+        while kill -0 "$load" 2>/dev/null; do
+            t=$(awk '/^Threads:/ {print $2}' "/proc/$server/status" 2>/dev/null || echo 0)
+            r=$(awk '/^VmRSS:/ {print $2}' "/proc/$server/status" 2>/dev/null || echo 0)
+            [ "$t" -gt "$threads" ] && threads=$t
+            [ "$r" -gt "$rss" ] && rss=$r
+            sleep 0.2
+        done
+        wait "$load" || true
+        kill "$server"
+        wait "$server" 2>/dev/null || true
+
+        label=$mode
+        if [ "$mode" = virtual ] && grep -q "Virtual threads are not available" "$log"; then
+            label="virtual (fell back to cached pool)"
+        fi
+        latency=$(grep "^Latency" "$log.load" || true)
+        p50=$(echo "$latency" | sed -n 's/.*p50 \([0-9.]*\).*/\1/p')
+        p99=$(echo "$latency" | sed -n 's/.*p99 \([0-9.]*\),.*/\1/p')
+        echo "| $label | $connections | $threads | $((rss / 1024)) MB | ${p50:-?} µs | ${p99:-?} µs |"
+        rm -f "$log.load"
+    done
+done
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ClientConnection against a server listening on loopback
+@Timeout(30)
+class ClientConnectionTest {
+    private TestServer server;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeAll
+    static void quietLog() {
+        Log.setLevel(Log.Level.WARN);
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void subscribeReceivesMessages() throws Exception {
+        startServer();
+        try (ClientConnection connection = connect()) {
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            publish("NEWS", "hello");
+            assertEquals("hello", take(news).text());
+        }
+    }
+
+    @Test
+    void subscribeFromReplaysTheLog() throws Exception {
+        startServer("--persist-dir=" + tempDir);
+        try (ClientConnection live = connect();
+                ClientConnection replaying = connect()) {
+            ClientConnection.Subscription news = live.subscribe("NEWS", 16);
+            publish("NEWS", "logged");
+            // Logged before it is delivered
+            assertEquals("logged", take(news).text());
+
+            ClientConnection.Subscription replay = replaying.subscribe("NEWS FROM EARLIEST", 16);
+            assertEquals("logged", take(replay).text());
+            publish("NEWS", "live");
+            assertEquals("live", take(replay).text());
+        }
+    }
+
+    @Test
+    void groupMembersShareMessages() throws Exception {
+        startServer();
+        try (ClientConnection first = connect();
+                ClientConnection second = connect()) {
+            ClientConnection.Subscription one = first.subscribe("NEWS GROUP g", 16);
+            ClientConnection.Subscription two = second.subscribe("NEWS GROUP g", 16);
+            for (int i = 0; i < 4; i++) {
+                publish("NEWS", "message " + i);
+            }
+            // Round robin: two each, none twice
+            Set<String> received = new HashSet<>();
+            for (ClientConnection.Subscription member : List.of(one, two)) {
+                for (int i = 0; i < 2; i++) {
+                    ClientConnection.Message message = take(member);
+                    assertEquals("NEWS", message.topic);
+                    assertTrue(received.add(message.text()), "received twice: " + message.text());
+                }
+            }
+            assertNull(one.poll(100, TimeUnit.MILLISECONDS));
+            assertNull(two.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void subscribeToNewTopicFromHandlerIsRefused() throws Exception {
+        startServer();
+        CompletableFuture<Throwable> refusal = new CompletableFuture<>();
+        try (ClientConnection connection = connect()) {
+            connection.subscribe("NEWS", message -> {
+                try {
+                    connection.subscribe("SPORTS", 16);
+                    refusal.complete(null);
+                } catch (Throwable e) {
+                    refusal.complete(e);
+                }
+            });
+            publish("NEWS", "hello");
+            assertInstanceOf(IllegalStateException.class, refusal.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private void startServer(String... options) throws Exception {
+        server = new TestServer(options);
+    }
+
+    private ClientConnection connect() throws IOException {
+        return server.connect();
+    }
+
+    private void publish(String topic, String text) throws IOException {
+        server.publish(topic, text);
+    }
+
+    private static ClientConnection.Message take(ClientConnection.Subscription subscription)
+            throws InterruptedException {
+        return TestServer.take(subscription);
+    }
+}
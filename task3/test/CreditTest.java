@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A subscriber's credit: unlimited until the first grant, then one frame
+// written per unit granted
+class CreditTest {
+    private ClientHandler client;
+
+    @BeforeEach
+    void createClient() {
+        client = new ClientHandler(new Server(0, new ServerConfig()), "subscriber");
+    }
+
+    @Test
+    void unlimitedUntilTheFirstGrant() {
+        assertEquals(-1, client.getCredit());
+        queue(3);
+        assertEquals(3, writable());
+        assertEquals(-1, client.getCredit());
+    }
+
+    @Test
+    void eachFrameWrittenUsesOneCredit() {
+        client.grantCredit(2);
+        queue(3);
+        assertEquals(2, writable());
+        assertEquals(0, client.getCredit());
+        assertEquals(1, client.getQueueDepth());
+
+        client.grantCredit(5);
+        assertEquals(1, writable());
+        assertEquals(4, client.getCredit());
+    }
+
+    @Test
+    void grantsAddUp() {
+        client.grantCredit(2);
+        client.grantCredit(3);
+        assertEquals(5, client.getCredit());
+        client.grantCredit(Integer.MAX_VALUE);
+        client.grantCredit(Integer.MAX_VALUE);
+        assertEquals(5L + 2L * Integer.MAX_VALUE, client.getCredit());
+    }
+
+    @Test
+    void nonPositiveGrantsAreIgnored() {
+        client.grantCredit(0);
+        client.grantCredit(-4);
+        assertEquals(-1, client.getCredit());
+        client.grantCredit(1);
+        client.grantCredit(-1);
+        assertEquals(1, client.getCredit());
+    }
+
+    private void queue(int frames) {
+        for (int i = 0; i < frames; i++) {
+            client.outbound.offer(PooledBuffer.wrap(ByteBuffer.allocate(1)));
+        }
+    }
+
+    // Frames the writer may take right now
+    private int writable() {
+        int count = 0;
+        while (client.pollWithCredit() != null) {
+            count++;
+        }
+        return count;
+    }
+}
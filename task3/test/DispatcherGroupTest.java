@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Topic sharding with a dispatch queue far smaller than what the publishers
+// send, so they are pushed back on the whole time: every topic's messages
+// still arrive complete and in order, whichever I/O mode read them
+@Timeout(60)
+class DispatcherGroupTest {
+    private static final int TOPICS = 6;
+    private static final int MESSAGES = 20000;
+
+    private TestServer server;
+
+    @BeforeAll
+    static void quietLog() {
+        Log.setLevel(Log.Level.WARN);
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void eachTopicStaysInOrderWithNio() throws Exception {
+        // One loop reads every publisher, so a paused one must not hold up the rest
+        assertTopicsInOrder("--io=nio", "--event-loops=1");
+    }
+
+    @Test
+    void eachTopicStaysInOrderWithThreads() throws Exception {
+        assertTopicsInOrder("--io=threads");
+    }
+
+    private void assertTopicsInOrder(String... io) throws Exception {
+        List<String> options = new ArrayList<>(List.of(io));
+        options.addAll(List.of("--dispatchers=2", "--dispatch-queue=4", "--queue-capacity=" + TOPICS * MESSAGES));
+        server = new TestServer(options.toArray(new String[0]));
+
+        try (ClientConnection connection = server.connect()) {
+            List<ClientConnection.Subscription> subscriptions = new ArrayList<>();
+            for (int t = 0; t < TOPICS; t++) {
+                subscriptions.add(connection.subscribe("TOPIC" + t, MESSAGES));
+            }
+
+            List<CompletableFuture<Void>> publishers = new ArrayList<>();
+            for (int t = 0; t < TOPICS; t++) {
+                String topic = "TOPIC" + t;
+                publishers.add(CompletableFuture.runAsync(() -> publish(topic)));
+            }
+            for (CompletableFuture<Void> publisher : publishers) {
+                publisher.get();
+            }
+
+            for (ClientConnection.Subscription subscription : subscriptions) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    assertEquals(String.valueOf(i), TestServer.take(subscription).text(), subscription.topic());
+                }
+                assertNull(subscription.poll(0, TimeUnit.MILLISECONDS));
+            }
+            String statistics = server.server.getStatistics();
+            assertTrue(statistics.contains("Dispatchers: 2, 0 messages queued"), statistics);
+        }
+    }
+
+    // Everything in one write, so the server reads it in buffers full of
+    // messages and keeps handing the dispatcher batches
+    private void publish(String topic) {
+        StringBuilder text = new StringBuilder("PUBLISHER\n").append(topic).append('\n');
+        for (int i = 0; i < MESSAGES; i++) {
+            text.append(i).append('\n');
+        }
+        text.append("terminate\n");
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            socket.getInputStream().readAllBytes();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
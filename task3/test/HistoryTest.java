@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Recent history for late joiners: the replay and the live messages meet
+// without a gap or a duplicate, and histories are bounded
+@Timeout(60)
+class HistoryTest {
+    private static final int HISTORY = 50;
+
+    private TestServer server;
+
+    @BeforeAll
+    static void quietLog() {
+        Log.setLevel(Log.Level.WARN);
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void joinersMidStreamSeeEveryMessageOnce() throws Exception {
+        server = new TestServer("--history=" + HISTORY, "--queue-capacity=100000");
+        int messages = 3000;
+        CompletableFuture<Void> publisher = CompletableFuture.runAsync(() -> {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write("PUBLISHER\nNEWS\n".getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < messages; i++) {
+                    // One write each, so joiners land between messages
+                    out.write((i + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                out.write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                socket.getInputStream().readAllBytes();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        List<ClientConnection> connections = new ArrayList<>();
+        List<ClientConnection.Subscription> joiners = new ArrayList<>();
+        try {
+            while (!publisher.isDone() || joiners.size() < 2) {
+                ClientConnection connection = server.connect();
+                connections.add(connection);
+                joiners.add(connection.subscribe("NEWS", messages));
+                Thread.sleep(2);
+            }
+            publisher.get();
+
+            for (ClientConnection.Subscription joiner : joiners) {
+                int first = Integer.parseInt(TestServer.take(joiner).text());
+                int previous = first;
+                while (previous < messages - 1) {
+                    int next = Integer.parseInt(TestServer.take(joiner).text());
+                    assertEquals(previous + 1, next, "after " + previous + " (first " + first + ")");
+                    previous = next;
+                }
+                assertNull(joiner.poll(0, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            for (ClientConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    @Test
+    void joinerAfterThePublisherLeftGetsTheHistory() throws Exception {
+        server = new TestServer("--history=3");
+        server.publish("PUBLISHER", "NEWS", "1", "2", "3", "4");
+        try (ClientConnection connection = server.connect()) {
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            for (String expected : List.of("2", "3", "4")) {
+                assertEquals(expected, TestServer.take(news).text());
+            }
+        }
+    }
+
+    @Test
+    void idleTopicHistoryMakesRoom() throws Exception {
+        server = new TestServer("--history=3", "--history-topics=1");
+        server.publish("NEWS", "old news");
+        // NEWS has no clients left, so its history goes to make room
+        server.publish("SPORTS", "score");
+        try (ClientConnection connection = server.connect()) {
+            ClientConnection.Subscription sports = connection.subscribe("SPORTS", 16);
+            assertEquals("score", TestServer.take(sports).text());
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            server.publish("NEWS", "new");
+            assertEquals("new", TestServer.take(news).text());
+        }
+    }
+
+    @Test
+    void topicInUseKeepsItsHistory() throws Exception {
+        server = new TestServer("--history=3", "--history-topics=1");
+        try (ClientConnection connection = server.connect();
+                ClientConnection late = server.connect()) {
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            server.publish("NEWS", "kept");
+            assertEquals("kept", TestServer.take(news).text());
+            // No room, and NEWS still has a subscriber: SPORTS keeps none
+            server.publish("SPORTS", "unkept");
+            ClientConnection.Subscription sports = connection.subscribe("SPORTS", 16);
+            assertEquals("kept", TestServer.take(late.subscribe("NEWS", 16)).text());
+            server.publish("SPORTS", "live");
+            assertEquals("live", TestServer.take(sports).text());
+        }
+    }
+}
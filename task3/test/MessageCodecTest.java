@@ -0,0 +1,107 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Binary frames and text lines, whole and arriving in pieces
+class MessageCodecTest {
+    @Test
+    void frameRoundTrips() throws IOException {
+        ByteBuffer frame = MessageCodec.encodeFrame(MessageCodec.FRAME_MESSAGE, 42, bytes("hello"));
+        assertEquals(MessageCodec.HEADER_LENGTH + 5, MessageCodec.frameLength(frame));
+
+        MessageCodec.Frame decoded = MessageCodec.decodeFrame(frame);
+        assertEquals(MessageCodec.FRAME_MESSAGE, decoded.type);
+        assertEquals(42, decoded.topicId);
+        assertEquals("hello", decoded.payloadText());
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void partialFrameIsLeftUntouched() throws IOException {
+        byte[] whole = array(MessageCodec.encodeFrame(MessageCodec.FRAME_BIND, 7, bytes("NEWS")));
+        for (int length = 0; length < whole.length; length++) {
+            ByteBuffer partial = ByteBuffer.wrap(whole, 0, length);
+            assertEquals(-1, MessageCodec.frameLength(partial), "length " + length);
+            assertNull(MessageCodec.decodeFrame(partial), "length " + length);
+            assertEquals(0, partial.position(), "length " + length);
+        }
+    }
+
+    @Test
+    void framesArrivingByteByByteDecodeInOrder() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(array(MessageCodec.encodeFrame(MessageCodec.FRAME_MESSAGE, 1, bytes("first"))));
+        stream.write(array(MessageCodec.encodeFrame(MessageCodec.FRAME_MESSAGE, 2, new byte[0])));
+        stream.write(array(MessageCodec.encodeFrame(MessageCodec.FRAME_INFO, 0, bytes("third"))));
+        byte[] input = stream.toByteArray();
+
+        // Fed the way a connection's input buffer is: append, decode, compact
+        ByteBuffer buffer = ByteBuffer.allocate(input.length);
+        StringBuilder decoded = new StringBuilder();
+        for (byte b : input) {
+            buffer.put(b);
+            buffer.flip();
+            MessageCodec.Frame frame;
+            while ((frame = MessageCodec.decodeFrame(buffer)) != null) {
+                decoded.append(frame.topicId).append(':').append(frame.payloadText()).append(' ');
+            }
+            buffer.compact();
+        }
+        assertEquals("1:first 2: 0:third ", decoded.toString());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void invalidLengthIsRejected() {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH);
+        MessageCodec.putHeader(frame, MessageCodec.FRAME_MESSAGE, 1, MessageCodec.MAX_PAYLOAD + 1);
+        assertThrows(IOException.class, () -> MessageCodec.frameLength(frame));
+        MessageCodec.putHeader(frame, MessageCodec.FRAME_MESSAGE, 1, -1);
+        assertThrows(IOException.class, () -> MessageCodec.decodeFrame(frame));
+    }
+
+    @Test
+    void streamRoundTrips() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        MessageCodec.writeFrame(out, MessageCodec.FRAME_SUBSCRIBE, 0, bytes("SPORTS.#"));
+        MessageCodec.writeFrame(out, MessageCodec.FRAME_MESSAGE, 3, bytes("abcdef"), 3);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("SPORTS.#", MessageCodec.readFrame(in).payloadText());
+        MessageCodec.Frame truncated = MessageCodec.readFrame(in);
+        assertEquals(3, truncated.topicId);
+        assertEquals("abc", truncated.payloadText());
+        assertNull(MessageCodec.readFrame(in));
+    }
+
+    @Test
+    void linesDecodeWithOrWithoutCarriageReturn() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes("one\r\ntwo\nthr"));
+        assertEquals("one", MessageCodec.decodeLine(buffer));
+        assertEquals("two", MessageCodec.decodeLine(buffer));
+        assertNull(MessageCodec.decodeLine(buffer));
+        assertEquals("thr", StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    @Test
+    void encodedLineEndsInNewline() {
+        ByteBuffer line = MessageCodec.encodeLine(bytes("[NEWS] "), bytes("héllo"));
+        assertEquals("[NEWS] héllo", MessageCodec.decodeLine(line));
+        assertFalse(line.hasRemaining());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] array(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Overflow policies, and control frames surviving them
+class OutboundQueueTest {
+    @Test
+    void dropOldestDropsTheOldestMessage() {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.OverflowPolicy.DROP_OLDEST);
+        assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(message("a")));
+        assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(message("b")));
+        assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(message("c")));
+        assertEquals(List.of("b", "c"), drain(queue));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void dropNewestDropsTheOfferedMessage() {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.OverflowPolicy.DROP_NEWEST);
+        queue.offer(message("a"));
+        queue.offer(message("b"));
+        assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(message("c")));
+        assertEquals(List.of("a", "b"), drain(queue));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void disconnectRejectsWhenFull() {
+        OutboundQueue queue = new OutboundQueue(1, ServerConfig.OverflowPolicy.DISCONNECT);
+        assertEquals(OutboundQueue.Offer.QUEUED, queue.offer(message("a")));
+        assertEquals(OutboundQueue.Offer.REJECTED, queue.offer(message("b")));
+        assertEquals(List.of("a"), drain(queue));
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    void dropOldestKeepsTheBindAheadOfItsMessages() {
+        OutboundQueue queue = new OutboundQueue(3, ServerConfig.OverflowPolicy.DROP_OLDEST);
+        queue.offer(control("BIND"));
+        for (String text : List.of("a", "b", "c", "d")) {
+            queue.offer(message(text));
+        }
+        assertEquals(List.of("BIND", "c", "d"), drain(queue));
+        assertEquals(2, queue.getDropped());
+    }
+
+    @Test
+    void controlFrameMakesRoomUnderEitherDropPolicy() {
+        for (ServerConfig.OverflowPolicy policy : List.of(ServerConfig.OverflowPolicy.DROP_OLDEST,
+                ServerConfig.OverflowPolicy.DROP_NEWEST)) {
+            OutboundQueue queue = new OutboundQueue(2, policy);
+            queue.offer(message("a"));
+            queue.offer(message("b"));
+            assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(control("BIND")), policy.name());
+            assertEquals(List.of("b", "BIND"), drain(queue), policy.name());
+        }
+    }
+
+    @Test
+    void messageIsDroppedWhenOnlyControlFramesAreQueued() {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.OverflowPolicy.DROP_OLDEST);
+        queue.offer(control("BIND"));
+        queue.offer(PooledBuffer.EMPTY);
+        assertEquals(OutboundQueue.Offer.DROPPED, queue.offer(message("a")));
+        assertEquals(OutboundQueue.Offer.REJECTED, queue.offer(control("INFO")));
+        assertEquals(2, queue.size());
+        assertTrue(queue.poll().isControl());
+        assertSame(PooledBuffer.EMPTY, queue.poll());
+    }
+
+    @Test
+    void droppedPooledMessagesGoBackToThePool() {
+        BufferPool pool = new BufferPool(1 << 20, false);
+        OutboundQueue queue = new OutboundQueue(1, ServerConfig.OverflowPolicy.DROP_OLDEST);
+        PooledBuffer first = pool.allocate(16);
+        queue.offer(first);
+        queue.offer(pool.allocate(16));
+        assertEquals(1, pool.idleBuffers());
+    }
+
+    private static PooledBuffer message(String text) {
+        return PooledBuffer.wrap(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static PooledBuffer control(String text) {
+        return PooledBuffer.control(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> texts = new ArrayList<>();
+        PooledBuffer frame;
+        while ((frame = queue.poll()) != null) {
+            texts.add(StandardCharsets.UTF_8.decode(frame.buffer().duplicate()).toString());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Session files and their rings, without a server: both ends are opened
+// from this process
+class ShmTransportTest {
+    private static final int RING_BYTES = 64;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void acceptHandsTheClientTheParkCap() throws IOException {
+        ShmSession client = ShmSession.create(directory.toPath(), RING_BYTES);
+        assertFalse(client.isAccepted());
+        ShmSession server = ShmSession.open(client.file());
+        assertTrue(server.accept(123_000));
+        assertTrue(client.isAccepted());
+        assertEquals(123_000, client.maxParkNanos());
+        // Only one server gets a session
+        assertFalse(ShmSession.open(client.file()).accept(1));
+    }
+
+    @Test
+    void writesWrapAroundTheRing() throws IOException {
+        ShmSession session = ShmSession.create(directory.toPath(), RING_BYTES);
+        byte[] chunk = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+        byte[] read = new byte[chunk.length];
+        for (int round = 0; round < 10; round++) {
+            // Alternate the two write paths, so both cross the end of the ring
+            int written = round % 2 == 0 ? session.toServer.write(chunk, 0, chunk.length)
+                    : session.toServer.write(ByteBuffer.wrap(chunk), 0, chunk.length);
+            assertEquals(chunk.length, written);
+            assertEquals(chunk.length, session.toServer.read(read, 0, read.length));
+            assertArrayEquals(chunk, read, "round " + round);
+            assertTrue(session.toServer.isEmpty());
+        }
+    }
+
+    @Test
+    void fullRingTakesOnlyWhatFits() throws IOException {
+        ShmSession session = ShmSession.create(directory.toPath(), RING_BYTES);
+        byte[] bytes = new byte[RING_BYTES + 10];
+        assertEquals(RING_BYTES, session.toServer.write(bytes, 0, bytes.length));
+        assertEquals(0, session.toServer.write(bytes, 0, 1));
+        assertEquals(10, session.toServer.read(new byte[10], 0, 10));
+        assertEquals(10, session.toServer.write(ByteBuffer.wrap(bytes), 0, bytes.length));
+    }
+}
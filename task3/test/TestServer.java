@@ -0,0 +1,74 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A server on a free loopback port, for tests that talk to it over sockets
+final class TestServer implements AutoCloseable {
+    final Server server;
+    final int port;
+
+    // Server only takes a port number, so find a free one first
+    TestServer(String... options) throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new Server(port, ServerConfig.parse(options, 0));
+        Thread listener = new Thread(server::start, "test-server");
+        listener.setDaemon(true);
+        listener.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    ClientConnection connect() throws IOException {
+        return new ClientConnection("localhost", port);
+    }
+
+    // Lines from a text publisher that handshakes with the given type, then
+    // hangs up once they are sent
+    void publish(String type, String topic, String... lines) throws IOException {
+        StringBuilder text = new StringBuilder(type).append('\n').append(topic).append('\n');
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        text.append("terminate\n");
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // The server closes the connection once it has handled terminate
+            socket.getInputStream().readAllBytes();
+        }
+    }
+
+    // One message from a plain text publisher
+    void publish(String topic, String text) throws IOException {
+        publish("PUBLISHER", topic, text);
+    }
+
+    static ClientConnection.Message take(ClientConnection.Subscription subscription)
+            throws InterruptedException {
+        ClientConnection.Message message = subscription.poll(10, TimeUnit.SECONDS);
+        assertNotNull(message, "no message for " + subscription.topic());
+        return message;
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
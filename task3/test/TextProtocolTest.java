@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// What a text publisher's lines mean once it has registered: only MULTI
+// publishers have PUBLISH commands, and no publisher has CREDIT
+@Timeout(30)
+class TextProtocolTest {
+    private TestServer server;
+
+    @BeforeAll
+    static void quietLog() {
+        Log.setLevel(Log.Level.WARN);
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void publisherCreditLineIsAMessage() throws Exception {
+        server = new TestServer();
+        try (ClientConnection connection = server.connect()) {
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            server.publish("PUBLISHER", "NEWS", "CREDIT 5", "credit 10 minutes");
+            assertEquals("CREDIT 5", TestServer.take(news).text());
+            assertEquals("credit 10 minutes", TestServer.take(news).text());
+        }
+    }
+
+    @Test
+    void plainPublisherPublishLineIsAMessage() throws Exception {
+        server = new TestServer();
+        try (ClientConnection connection = server.connect()) {
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            ClientConnection.Subscription sports = connection.subscribe("SPORTS", 16);
+            server.publish("PUBLISHER", "NEWS", "PUBLISH SPORTS goal", "publish it");
+            assertEquals("PUBLISH SPORTS goal", TestServer.take(news).text());
+            assertEquals("publish it", TestServer.take(news).text());
+            // Nothing went to SPORTS ahead of this
+            server.publish("SPORTS", "first");
+            assertEquals("first", TestServer.take(sports).text());
+        }
+    }
+
+    @Test
+    void multiPublisherRoutesPublishLines() throws Exception {
+        server = new TestServer();
+        try (ClientConnection connection = server.connect()) {
+            ClientConnection.Subscription news = connection.subscribe("NEWS", 16);
+            ClientConnection.Subscription sports = connection.subscribe("SPORTS", 16);
+            server.publish(MessageCodec.MULTI_HANDSHAKE, "NEWS", "PUBLISH SPORTS goal", "plain");
+            assertEquals("goal", TestServer.take(sports).text());
+            assertEquals("plain", TestServer.take(news).text());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Segment roll, retention, reads across segment boundaries and recovery
+// after a restart, with segments small enough to hold a few records each
+class TopicLogTest {
+    private static final byte[] PUBLISHER = "p".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    File directory;
+
+    @BeforeAll
+    static void quietLog() {
+        Log.setLevel(Log.Level.WARN);
+    }
+
+    @Test
+    void recoversAfterRestart() throws IOException {
+        TopicLog log = open();
+        append(log, 0, 20);
+        log.close();
+
+        TopicLog reopened = open();
+        assertEquals(0, reopened.earliestOffset());
+        assertEquals(20, reopened.nextOffset());
+        assertEquals(range(0, 20), readAll(reopened, 0));
+        assertEquals(20, append(reopened, 20, 1));
+    }
+
+    @Test
+    void rollsIntoSegmentsNamedByTheirFirstOffset() throws IOException {
+        TopicLog log = open();
+        append(log, 0, 20);
+        long[] bases = segmentBases();
+        assertTrue(bases.length > 2, "segments: " + Arrays.toString(bases));
+        assertEquals(0, bases[0]);
+        assertEquals(range(0, 20), readAll(log, 0));
+    }
+
+    @Test
+    void readsFromASegmentBoundary() throws IOException {
+        TopicLog log = open();
+        append(log, 0, 20);
+        for (long base : segmentBases()) {
+            if (base == 0) {
+                continue;
+            }
+            assertEquals(List.of("message " + base), read(log, base, 1), "from " + base);
+            assertEquals(List.of("message " + (base - 1), "message " + base), read(log, base - 1, 2),
+                    "from " + (base - 1));
+            assertEquals(range((int) base, 20), readAll(log, base));
+        }
+    }
+
+    @Test
+    void retentionDeletesTheOldestSegments() throws IOException {
+        TopicLog log = open("--persist-max-segments=2");
+        append(log, 0, 50);
+        long[] bases = segmentBases();
+        assertEquals(2, bases.length, Arrays.toString(bases));
+        assertEquals(bases[0], log.earliestOffset());
+        // An offset no longer on disk reads from the earliest one that is
+        assertEquals(range((int) bases[0], 50), readAll(log, 0));
+        log.close();
+
+        TopicLog reopened = open("--persist-max-segments=2");
+        assertEquals(bases[0], reopened.earliestOffset());
+        assertEquals(50, reopened.nextOffset());
+    }
+
+    @Test
+    void restartWithALowerCapTrims() throws IOException {
+        TopicLog log = open("--persist-max-segments=0");
+        append(log, 0, 50);
+        log.close();
+        TopicLog reopened = open("--persist-max-segments=1");
+        assertEquals(1, segmentBases().length);
+        assertEquals(50, reopened.nextOffset());
+    }
+
+    @Test
+    void segmentsHoldNoFileDescriptors() throws IOException {
+        File descriptors = new File("/proc/self/fd");
+        assumeTrue(descriptors.isDirectory(), "needs /proc");
+        int before = descriptors.list().length;
+        TopicLog log = open("--persist-max-segments=0");
+        append(log, 0, 400);
+        assertTrue(segmentBases().length > 50);
+        assertTrue(descriptors.list().length - before < 10, "descriptors grew with segments");
+        log.close();
+    }
+
+    private TopicLog open(String... options) throws IOException {
+        String[] args = Arrays.copyOf(new String[] { "--persist-segment-bytes=100", "--persist-index-bytes=20" },
+                2 + options.length);
+        System.arraycopy(options, 0, args, 2, options.length);
+        return new TopicLog("NEWS", directory, ServerConfig.parse(args, 0), () -> {
+        });
+    }
+
+    // Appends "message from" .. "message from+count-1"; returns the last offset
+    private static long append(TopicLog log, int from, int count) throws IOException {
+        long offset = -1;
+        for (int i = from; i < from + count; i++) {
+            byte[] payload = ("message " + i).getBytes(StandardCharsets.UTF_8);
+            offset = log.append(PUBLISHER, ByteBuffer.wrap(payload), 0, payload.length);
+            assertEquals(i, offset);
+        }
+        return offset;
+    }
+
+    private static List<String> read(TopicLog log, long from, int max) {
+        List<String> messages = new ArrayList<>();
+        log.read(from, max, (offset, publisherInfo, payload) -> {
+            String text = new String(payload, StandardCharsets.UTF_8);
+            assertEquals("message " + offset, text);
+            assertEquals("p", publisherInfo);
+            return messages.add(text);
+        });
+        return messages;
+    }
+
+    private static List<String> readAll(TopicLog log, long from) {
+        return read(log, from, Integer.MAX_VALUE);
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add("message " + i);
+        }
+        return messages;
+    }
+
+    private long[] segmentBases() {
+        return Arrays.stream(directory.list((dir, name) -> name.endsWith(LogSegment.LOG_SUFFIX)))
+                .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length())))
+                .sorted()
+                .toArray();
+    }
+}
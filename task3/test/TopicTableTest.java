@@ -0,0 +1,107 @@
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Dense topic ids: reference counting, and reuse of a dead topic's slot
+// under a new generation so stale ids never name the new topic
+class TopicTableTest {
+    private final TopicTable table = new TopicTable();
+
+    @Test
+    void acquireSharesOneTopicPerName() {
+        Topic news = table.acquire("NEWS");
+        assertSame(news, table.acquire("NEWS"));
+        assertNotSame(news, table.acquire("SPORTS"));
+        assertSame(news, table.get(news.id));
+        assertSame(news, table.get("NEWS"));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    void idZeroIsNeverGivenOut() {
+        assertNotEquals(0, table.acquire("NEWS").id & TopicTable.INDEX_MASK);
+        assertNull(table.get(0));
+    }
+
+    @Test
+    void lastReleaseKillsTheTopic() {
+        Topic news = table.acquire("NEWS");
+        table.acquire("NEWS");
+        table.release("NEWS");
+        assertSame(news, table.get(news.id));
+        table.release("NEWS");
+        assertNull(table.get(news.id));
+        assertNull(table.get("NEWS"));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void reusedSlotGetsANewGeneration() {
+        Topic news = table.acquire("NEWS");
+        table.release("NEWS");
+        Topic sports = table.acquire("SPORTS");
+
+        assertEquals(news.id & TopicTable.INDEX_MASK, sports.id & TopicTable.INDEX_MASK);
+        assertNotEquals(news.id, sports.id);
+        // The dead topic's id no longer resolves, not even to its slot's new topic
+        assertNull(table.get(news.id));
+        assertSame(sports, table.get(sports.id));
+    }
+
+    @Test
+    void topicBackFromTheDeadHasANewId() {
+        Topic first = table.acquire("NEWS");
+        table.release("NEWS");
+        Topic second = table.acquire("NEWS");
+        assertNotSame(first, second);
+        assertNotEquals(first.id, second.id);
+        assertNull(table.get(first.id));
+    }
+
+    @Test
+    void freedSlotsAreReusedBeforeNewOnes() {
+        Set<Integer> indexes = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            indexes.add(table.acquire("T" + i).id & TopicTable.INDEX_MASK);
+        }
+        for (int i = 0; i < 10; i++) {
+            table.release("T" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(indexes.contains(table.acquire("U" + i).id & TopicTable.INDEX_MASK));
+        }
+    }
+
+    @Test
+    void slotsGrowPastTheInitialArray() {
+        Topic[] topics = new Topic[500];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = table.acquire("T" + i);
+        }
+        for (Topic topic : topics) {
+            assertSame(topic, table.get(topic.id));
+        }
+    }
+
+    @Test
+    void releaseIfLastKeepsASharedTopic() {
+        Topic news = table.acquire("NEWS");
+        table.acquire("NEWS");
+        assertFalse(table.releaseIfLast("NEWS"));
+        assertSame(news, table.get(news.id));
+        table.release("NEWS");
+        assertTrue(table.releaseIfLast("NEWS"));
+        assertNull(table.get(news.id));
+        assertFalse(table.releaseIfLast("NEWS"));
+    }
+
+    @Test
+    void releaseOfAnUnknownNameIsIgnored() {
+        Topic news = table.acquire("NEWS");
+        table.release("SPORTS");
+        assertSame(news, table.get(news.id));
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Wildcard matching, and which topics' cached matches a change invalidates
+class TopicTrieTest {
+    private TopicTable table;
+    private TopicTrie trie;
+    private Server server;
+
+    @BeforeEach
+    void createTrie() {
+        table = new TopicTable();
+        trie = new TopicTrie(table);
+        server = new Server(0, new ServerConfig());
+    }
+
+    @Test
+    void singleWildcardMatchesExactlyOneSegment() {
+        ClientHandler client = client("a");
+        trie.add("SPORTS.*.SCORES", client);
+        assertMatched("SPORTS.FOOTBALL.SCORES", client);
+        assertMatched("SPORTS.SCORES");
+        assertMatched("SPORTS.FOOTBALL.LIVE.SCORES");
+        assertMatched("NEWS.FOOTBALL.SCORES");
+    }
+
+    @Test
+    void multiWildcardMatchesZeroOrMoreSegments() {
+        ClientHandler client = client("a");
+        trie.add("SPORTS.#", client);
+        assertMatched("SPORTS", client);
+        assertMatched("SPORTS.FOOTBALL", client);
+        assertMatched("SPORTS.FOOTBALL.LIVE.SCORES", client);
+        assertMatched("NEWS");
+        assertMatched("SPORTSWEAR");
+    }
+
+    @Test
+    void rootMultiWildcardMatchesEverything() {
+        ClientHandler client = client("a");
+        trie.add("#", client);
+        assertMatched("NEWS", client);
+        assertMatched("SPORTS.FOOTBALL", client);
+    }
+
+    @Test
+    void clientMatchingSeveralWaysIsMatchedOnce() {
+        ClientHandler client = client("a");
+        ClientHandler other = client("b");
+        trie.add("SPORTS.FOOTBALL", client);
+        trie.add("SPORTS.*", client);
+        trie.add("SPORTS.#", client);
+        trie.add("#", other);
+        assertMatched("SPORTS.FOOTBALL", client, other);
+        assertEquals(2, trie.match("SPORTS.FOOTBALL").length);
+    }
+
+    @Test
+    void staticMatchesAgreesWithTheTrie() {
+        String[] subscriptions = { "A", "A.B", "A.*", "A.#", "*.B", "#", "A.*.C", "*.*.#" };
+        String[] topics = { "A", "B", "A.B", "A.C", "B.B", "A.B.C", "A.B.D", "A.B.C.D" };
+        for (String subscription : subscriptions) {
+            TopicTrie single = new TopicTrie(new TopicTable());
+            ClientHandler client = client(subscription);
+            single.add(subscription, client);
+            for (String topic : topics) {
+                assertEquals(TopicTrie.matches(subscription, topic), single.match(topic).length == 1,
+                        subscription + " against " + topic);
+            }
+        }
+    }
+
+    @Test
+    void removePrunesAndStopsMatching() {
+        ClientHandler client = client("a");
+        trie.add("SPORTS.*", client);
+        assertTrue(trie.remove("SPORTS.*", client));
+        assertFalse(trie.remove("SPORTS.*", client));
+        assertMatched("SPORTS.FOOTBALL");
+        assertTrue(trie.subscriptions().isEmpty());
+    }
+
+    @Test
+    void changeInvalidatesOnlyMatchingTopics() {
+        Topic football = table.acquire("SPORTS.FOOTBALL");
+        Topic news = table.acquire("NEWS");
+        ClientHandler client = client("a");
+        trie.add("NEWS", client);
+        ClientHandler[] newsCached = trie.match(news);
+        ClientHandler[] footballCached = trie.match(football);
+
+        // A concrete subscription elsewhere leaves NEWS's cached match alone
+        trie.add("WEATHER", client("b"));
+        assertSame(newsCached, trie.match(news));
+        assertSame(footballCached, trie.match(football));
+
+        // A pattern bumps only the topics it matches
+        ClientHandler fan = client("c");
+        trie.add("SPORTS.#", fan);
+        assertSame(newsCached, trie.match(news));
+        assertArrayEquals(new ClientHandler[] { fan }, trie.match(football));
+
+        trie.remove("SPORTS.#", fan);
+        assertEquals(0, trie.match(football).length);
+        assertSame(newsCached, trie.match(news));
+    }
+
+    @Test
+    void topicCreatedAfterSubscribingSeesTheSubscriber() {
+        ClientHandler client = client("a");
+        trie.add("SPORTS.*", client);
+        Topic football = table.acquire("SPORTS.FOOTBALL");
+        assertArrayEquals(new ClientHandler[] { client }, trie.match(football));
+    }
+
+    @Test
+    void clearInvalidatesEveryTopic() {
+        Topic news = table.acquire("NEWS");
+        trie.add("NEWS", client("a"));
+        assertEquals(1, trie.match(news).length);
+        trie.clear();
+        assertEquals(0, trie.match(news).length);
+    }
+
+    private ClientHandler client(String name) {
+        return new ClientHandler(server, name);
+    }
+
+    private void assertMatched(String topic, ClientHandler... expected) {
+        Set<ClientHandler> matched = new HashSet<>(Arrays.asList(trie.match(topic)));
+        assertEquals(new HashSet<>(Arrays.asList(expected)), matched, topic);
+    }
+}